@@ -0,0 +1,113 @@
+package uk.co.johnsto.mailcircle;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that numbers drawn from the glyph atlas look like numbers laid out as text. Runs on a
+ * device, as only real text rendering can be compared.
+ * <p/>
+ * Glyphs are placed by their advance widths, so a pixel may land one pixel away from where
+ * drawText puts it, and anti-aliasing may differ slightly.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GlyphAtlasTest {
+    private static final int SIZE = 128;
+    private static final int[] NUMBERS = {0, 7, 42, 1234, 99999};
+
+    // Largest difference allowed in any channel, and how far a pixel may have moved
+    private static final int TOLERANCE = 48;
+    private static final int DISTANCE = 1;
+
+    // Fraction of pixels allowed to differ by more than that, e.g. where kerning was ignored
+    private static final float MAX_MISMATCHES = 0.01f;
+
+    @Test
+    public void atlasMatchesText() {
+        for (NotificationIconFactory.Style style : NotificationIconFactory.Style.values()) {
+            final NotificationIconFactory text = createFactory(false);
+            final NotificationIconFactory atlas = createFactory(true);
+            for (int number : NUMBERS) {
+                final Bitmap expected = build(text, style, number);
+                final Bitmap actual = build(atlas, style, number);
+                final int mismatches = countMismatches(expected, actual)
+                        + countMismatches(actual, expected);
+                assertTrue(mismatches + " pixels differ in " + style + " icon of " + number,
+                        mismatches <= 2 * MAX_MISMATCHES * SIZE * SIZE);
+            }
+        }
+    }
+
+    private static NotificationIconFactory createFactory(boolean glyphAtlas) {
+        final int iconBytes = 4 * SIZE * SIZE;
+        final NotificationIconFactory.Cache cache = new NotificationIconFactory.Cache(
+                NotificationService.ICON_CACHE_SIZE * iconBytes,
+                NotificationService.ICON_BASE_CACHE_SIZE * iconBytes,
+                NotificationService.ICON_POOL_SIZE);
+        return new NotificationIconFactory(
+                InstrumentationRegistry.getTargetContext().getResources(), SIZE, SIZE, cache)
+                .setGlyphAtlasEnabled(glyphAtlas);
+    }
+
+    private static Bitmap build(NotificationIconFactory factory,
+                                NotificationIconFactory.Style style, int number) {
+        return factory.reset()
+                .setStyle(style)
+                .setColor(0xfff44336)
+                .addSlice(3, 0xfff44336)
+                .addSlice(1, 0xff2196f3)
+                .setNumber(number)
+                .build();
+    }
+
+    /**
+     * @return Number of pixels in the first bitmap with no close match in the second, within
+     * {@link #DISTANCE} pixels.
+     */
+    private static int countMismatches(Bitmap a, Bitmap b) {
+        final int width = a.getWidth();
+        final int height = a.getHeight();
+        final int[] pixelsA = new int[width * height];
+        final int[] pixelsB = new int[width * height];
+        a.getPixels(pixelsA, 0, width, 0, 0, width, height);
+        b.getPixels(pixelsB, 0, width, 0, 0, width, height);
+
+        int mismatches = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!hasMatch(pixelsA[y * width + x], pixelsB, width, height, x, y)) {
+                    mismatches++;
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    private static boolean hasMatch(int pixel, int[] pixels, int width, int height, int x, int y) {
+        for (int dy = -DISTANCE; dy <= DISTANCE; dy++) {
+            for (int dx = -DISTANCE; dx <= DISTANCE; dx++) {
+                final int nx = x + dx;
+                final int ny = y + dy;
+                if (nx >= 0 && nx < width && ny >= 0 && ny < height
+                        && isClose(pixel, pixels[ny * width + nx])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isClose(int a, int b) {
+        return Math.abs(Color.alpha(a) - Color.alpha(b)) <= TOLERANCE
+                && Math.abs(Color.red(a) - Color.red(b)) <= TOLERANCE
+                && Math.abs(Color.green(a) - Color.green(b)) <= TOLERANCE
+                && Math.abs(Color.blue(a) - Color.blue(b)) <= TOLERANCE;
+    }
+}
@@ -0,0 +1,198 @@
+package uk.co.johnsto.mailcircle;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in for the Gmail labels provider, serving the same columns as
+ * {@link GmailContract.Labels} for any account name, with a configurable number of labels per
+ * account and a configurable delay on every query.
+ * <p/>
+ * Unread counts are derived from the account, the label and the number of times the account has
+ * been {@link #change changed}, so they're stable between changes.
+ */
+public class FakeGmailProvider extends ContentProvider {
+    public static final String AUTHORITY = "uk.co.johnsto.mailcircle.fakegmail";
+
+    // System labels, listed after the user's labels so that finding one means scanning them all
+    private static final String[] SYSTEM_LABELS = {
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_STARRED,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SENT,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_DRAFTS,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_SPAM,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_TRASH,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_ALL_MAIL,
+    };
+
+    private static volatile int sLabelCount = 10;
+    private static volatile long sLatency;
+    private static final ConcurrentHashMap<String, Integer> sVersions =
+            new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Sets up the labels served for every account, and forgets all changes.
+     *
+     * @param labelCount Number of labels on each account, including the system labels
+     * @param latency    Delay (ms) before each query answers
+     */
+    public static void configure(int labelCount, long latency) {
+        sLabelCount = Math.max(labelCount, SYSTEM_LABELS.length);
+        sLatency = latency;
+        sVersions.clear();
+    }
+
+    /**
+     * Changes the unread counts of an account, and notifies observers of its labels. Only the
+     * All Mail label is notified individually, as that's the one watched by default.
+     *
+     * @param context     Context used to notify observers
+     * @param accountName The account name, e.g. example@gmail.com
+     */
+    public static void change(Context context, String accountName) {
+        final Integer version = sVersions.get(accountName);
+        sVersions.put(accountName, version == null ? 1 : version + 1);
+        context.getContentResolver().notifyChange(getLabelUri(accountName, sLabelCount - 1), null);
+        context.getContentResolver().notifyChange(
+                Uri.parse("content://" + AUTHORITY + "/" + accountName + "/labels"), null);
+    }
+
+    private static Uri getLabelUri(String accountName, int index) {
+        return Uri.parse("content://" + AUTHORITY + "/" + accountName + "/label/" + index);
+    }
+
+    private static String getCanonicalName(int index) {
+        final int system = index - (sLabelCount - SYSTEM_LABELS.length);
+        return system >= 0 ? SYSTEM_LABELS[system] : "label-" + index;
+    }
+
+    private static int getUnreadCount(String accountName, int index) {
+        final Integer version = sVersions.get(accountName);
+        return (accountName.hashCode() + index + 3 * (version == null ? 0 : version)) & 63;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal signal) {
+        delay(signal);
+
+        // Either <account>/labels or <account>/label/<index>
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2) {
+            return null;
+        }
+        final String accountName = segments.get(0);
+        final String[] columns = projection != null ? projection : new String[]{
+                GmailContract.Labels.CANONICAL_NAME,
+                GmailContract.Labels.NAME,
+                GmailContract.Labels.NUM_CONVERSATIONS,
+                GmailContract.Labels.NUM_UNREAD_CONVERSATIONS,
+                GmailContract.Labels.URI,
+        };
+
+        if (segments.size() == 2 && "labels".equals(segments.get(1))) {
+            final MatrixCursor cursor = new MatrixCursor(columns, sLabelCount);
+            for (int i = 0; i < sLabelCount; i++) {
+                cursor.addRow(makeRow(columns, accountName, i));
+            }
+            return cursor;
+        } else if (segments.size() == 3 && "label".equals(segments.get(1))) {
+            final int index;
+            try {
+                index = Integer.parseInt(segments.get(2));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            final MatrixCursor cursor = new MatrixCursor(columns, 1);
+            if (index >= 0 && index < sLabelCount) {
+                cursor.addRow(makeRow(columns, accountName, index));
+            }
+            return cursor;
+        }
+        return null;
+    }
+
+    private static Object[] makeRow(String[] columns, String accountName, int index) {
+        final Object[] row = new Object[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            final String column = columns[c];
+            if (GmailContract.Labels.CANONICAL_NAME.equals(column)) {
+                row[c] = getCanonicalName(index);
+            } else if (GmailContract.Labels.NAME.equals(column)) {
+                row[c] = "Label " + index;
+            } else if (GmailContract.Labels.NUM_CONVERSATIONS.equals(column)) {
+                row[c] = 100;
+            } else if (GmailContract.Labels.NUM_UNREAD_CONVERSATIONS.equals(column)) {
+                row[c] = getUnreadCount(accountName, index);
+            } else if (GmailContract.Labels.URI.equals(column)) {
+                row[c] = getLabelUri(accountName, index).toString();
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Waits for the configured latency, giving up early if the query is cancelled.
+     */
+    private static void delay(CancellationSignal signal) {
+        final long end = System.currentTimeMillis() + sLatency;
+        long remaining;
+        while ((remaining = end - System.currentTimeMillis()) > 0) {
+            if (signal != null && signal.isCanceled()) {
+                throw new OperationCanceledException();
+            }
+            try {
+                Thread.sleep(Math.min(remaining, 10));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return GmailContract.Labels.CONTENT_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
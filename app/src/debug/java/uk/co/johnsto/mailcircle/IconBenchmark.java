@@ -0,0 +1,228 @@
+package uk.co.johnsto.mailcircle;
+
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long {@link NotificationIconFactory#build()} takes to render an icon, and how
+ * much it allocates, for every style across a range of slice counts, icon sizes and numbers.
+ * Icons are built the way the service builds them: by one reused factory, through a cache of
+ * the service's size, with and without the glyph atlas, and in three cache states:
+ * <ul>
+ * <li>hit: the same icon again, found in the cache</li>
+ * <li>base: a new number over a cached base layer</li>
+ * <li>cold: an empty cache, so the whole icon is drawn into a new bitmap</li>
+ * </ul>
+ * Results are compared with a baseline recorded on a reference device, in the same format as
+ * {@link Result#toString()}, one case per line. Lines starting with '#' are ignored.
+ */
+public class IconBenchmark implements Consts {
+    /**
+     * Name of the asset holding the baseline results.
+     */
+    public static final String BASELINE_ASSET = "icon_benchmark_baseline.txt";
+
+    private static final int[] SLICE_COUNTS = {1, 4, 16, 64};
+    private static final float[] DENSITIES = {0.75f, 1f, 1.5f, 2f, 3f, 4f}; // ldpi to xxxhdpi
+    private static final int ICON_SIZE_DP = 64;
+    private static final int[] NUMBERS = {7, 1234, 1234567};
+    private static final int[] COLORS = {0xfff44336, 0xff4caf50, 0xff2196f3, 0xffffc107};
+    private static final String[] MODES = {"hit", "base", "cold"};
+
+    // Numbers cycled through in "base" mode; more than the cache holds, so every icon is new
+    private static final int BASE_MODE_NUMBERS = 4 * NotificationService.ICON_CACHE_SIZE;
+
+    private static final int WARMUP_RENDERS = 5;
+    private static final int TIMED_RENDERS = 20;
+
+    // How much slower (as a factor) or how many more bytes a case may be before it regresses
+    private static final float TIME_TOLERANCE = 1.5f;
+    private static final long ALLOC_TOLERANCE = 64;
+
+    // Runtime statistic counting every byte allocated by the process (API 23 and later)
+    private static final String BYTES_ALLOCATED_STAT = "art.gc.bytes-allocated";
+
+    private final Resources mResources;
+
+    public IconBenchmark(Resources res) {
+        mResources = res;
+    }
+
+    /**
+     * Renders every case. Takes a while, so mustn't be called on the main thread, and the
+     * service shouldn't be running meanwhile, as allocations are counted for the whole process.
+     *
+     * @return Result of each case
+     */
+    public List<Result> run() {
+        final List<Result> results = new ArrayList<Result>();
+        for (NotificationIconFactory.Style style : NotificationIconFactory.Style.values()) {
+            for (int slices : SLICE_COUNTS) {
+                for (float density : DENSITIES) {
+                    for (int number : NUMBERS) {
+                        for (int atlas = 0; atlas < 2; atlas++) {
+                            for (String mode : MODES) {
+                                results.add(run(style, slices, (int) (ICON_SIZE_DP * density),
+                                        number, atlas == 1, mode));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private Result run(NotificationIconFactory.Style style, int slices, int size, int number,
+                       boolean atlas, String mode) {
+        final int iconBytes = 4 * size * size;
+        final NotificationIconFactory.Cache cache = new NotificationIconFactory.Cache(
+                NotificationService.ICON_CACHE_SIZE * iconBytes,
+                NotificationService.ICON_BASE_CACHE_SIZE * iconBytes,
+                NotificationService.ICON_POOL_SIZE);
+        final NotificationIconFactory factory =
+                new NotificationIconFactory(mResources, size, size, cache);
+        for (int i = 0; i < WARMUP_RENDERS; i++) {
+            render(factory, cache, style, slices, number, atlas, mode, i);
+        }
+
+        final long startBytes = getBytesAllocated();
+        final long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RENDERS; i++) {
+            render(factory, cache, style, slices, number, atlas, mode, WARMUP_RENDERS + i);
+        }
+        final long nanos = (System.nanoTime() - start) / TIMED_RENDERS;
+        final long endBytes = getBytesAllocated();
+        final long bytes = startBytes >= 0 && endBytes >= 0
+                ? (endBytes - startBytes) / TIMED_RENDERS : -1;
+
+        cache.clear();
+        return new Result(style.name + "/" + slices + "/" + size + "px/" + number + "/"
+                + (atlas ? "atlas" : "text") + "/" + mode, nanos, bytes);
+    }
+
+    private static void render(NotificationIconFactory factory, NotificationIconFactory.Cache cache,
+                               NotificationIconFactory.Style style, int slices, int number,
+                               boolean atlas, String mode, int iteration) {
+        if ("cold".equals(mode)) {
+            cache.clear();
+        } else if ("base".equals(mode)) {
+            number += iteration % BASE_MODE_NUMBERS;
+        }
+        factory.reset().setGlyphAtlasEnabled(atlas).setStyle(style).setColor(COLORS[0])
+                .setNumber(number);
+        for (int i = 0; i < slices; i++) {
+            factory.addSlice(i + 1, COLORS[i % COLORS.length]);
+        }
+        factory.build();
+    }
+
+    /**
+     * @return Number of bytes the process has allocated so far, or -1 if it can't be told.
+     */
+    private static long getBytesAllocated() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        final String value = Debug.getRuntimeStat(BYTES_ALLOCATED_STAT);
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads baseline results.
+     *
+     * @param in Stream to read from
+     * @return Baseline results by case name
+     * @throws IOException if the stream can't be read
+     */
+    public static Map<String, Result> readBaseline(InputStream in) throws IOException {
+        final Map<String, Result> baseline = new HashMap<String, Result>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\\s+");
+            if (fields.length != 3) {
+                Log.w(TAG, "Ignoring malformed benchmark baseline: " + line);
+                continue;
+            }
+            try {
+                baseline.put(fields[0], new Result(fields[0],
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            } catch (NumberFormatException ex) {
+                Log.w(TAG, "Ignoring malformed benchmark baseline: " + line);
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Compares results with the baseline, logging an error for each case that has got slower,
+     * allocates more, or has no baseline to be checked against.
+     *
+     * @param results  Results of a run
+     * @param baseline Baseline results by case name
+     * @return Description of each failure
+     */
+    public static List<String> findFailures(List<Result> results, Map<String, Result> baseline) {
+        final List<String> failures = new ArrayList<String>();
+        for (Result result : results) {
+            final Result base = baseline.get(result.name);
+            if (base == null) {
+                failures.add(result.name + ": not in the baseline");
+                continue;
+            }
+            if (result.nanos > base.nanos * TIME_TOLERANCE) {
+                failures.add(result.name + ": " + result.nanos + "ns per render, was "
+                        + base.nanos + "ns");
+            }
+            // Allocations can't be counted before Android 6.0
+            if (result.bytes >= 0 && base.bytes >= 0 && result.bytes > base.bytes + ALLOC_TOLERANCE) {
+                failures.add(result.name + ": " + result.bytes + " bytes per render, was "
+                        + base.bytes + " bytes");
+            }
+        }
+        for (String failure : failures) {
+            Log.e(TAG, "Icon benchmark failed: " + failure);
+        }
+        return failures;
+    }
+
+    /**
+     * Time and allocations of a single case.
+     */
+    public static class Result {
+        public final String name; // style/slices/size/number/atlas/mode
+        public final long nanos; // per render
+        public final long bytes; // allocated per render, or -1 if not counted
+
+        public Result(String name, long nanos, long bytes) {
+            this.name = name;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + nanos + " " + bytes;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package uk.co.johnsto.mailcircle;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs {@link IconBenchmark} and compares the results with the baseline asset. Every failure
+ * is logged as an error, followed by a summary line starting with PASS or FAIL, so a script
+ * can tell the outcome from logcat. Once a baseline has been recorded, a case missing from it
+ * counts as a failure, as the baseline is out of date.
+ * <p/>
+ * Results are saved to icon_benchmark.txt in the app's external files directory, in baseline
+ * format. In record mode, or while the baseline asset holds no cases, nothing is compared and
+ * the summary line starts with RECORDED instead; the saved results are then pulled off the
+ * reference device and copied into the asset.
+ * <p/>
+ * Start with {@code adb shell am startservice -n uk.co.johnsto.mailcircle/.IconBenchmarkService},
+ * optionally passing {@code --ez record true} to record a new baseline.
+ */
+public class IconBenchmarkService extends IntentService implements Consts {
+    public static final String EXTRA_RECORD = "record";
+
+    public IconBenchmarkService() {
+        super("IconBenchmark");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final Map<String, IconBenchmark.Result> baseline;
+        try {
+            final InputStream in = getAssets().open(IconBenchmark.BASELINE_ASSET);
+            try {
+                baseline = IconBenchmark.readBaseline(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Icon benchmark: FAIL, couldn't read baseline", ex);
+            return;
+        }
+
+        final List<IconBenchmark.Result> results = new IconBenchmark(getResources()).run();
+        save(results);
+
+        if (intent.getBooleanExtra(EXTRA_RECORD, false) || baseline.isEmpty()) {
+            Log.i(TAG, "Icon benchmark: RECORDED, " + results.size()
+                    + " cases saved to icon_benchmark.txt; copy it into the baseline asset");
+            return;
+        }
+
+        final List<String> failures = IconBenchmark.findFailures(results, baseline);
+        if (failures.isEmpty()) {
+            Log.i(TAG, "Icon benchmark: PASS, " + results.size() + " cases");
+        } else {
+            Log.e(TAG, "Icon benchmark: FAIL, " + failures.size() + " failures in "
+                    + results.size() + " cases");
+        }
+    }
+
+    private void save(List<IconBenchmark.Result> results) {
+        final File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        try {
+            final Writer out = new OutputStreamWriter(
+                    new FileOutputStream(new File(dir, "icon_benchmark.txt")), "UTF-8");
+            try {
+                for (IconBenchmark.Result result : results) {
+                    out.write(result + "\n");
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Couldn't save icon benchmark results", ex);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package uk.co.johnsto.mailcircle;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link NotificationService} against {@link FakeGmailProvider} with increasing numbers
+ * of accounts and labels, and reports how long checks take, how long a change takes to reach
+ * the notification, and how often the notification is posted.
+ * <p/>
+ * The provider and enabled accounts are overridden in memory while the benchmark runs, so the
+ * user's settings are never touched, even if the process is killed part way. While they are,
+ * the service posts a separate notification and leaves the stored state and event trace alone.
+ * Results are logged and saved to pipeline_benchmark.txt in the app's external files directory.
+ * <p/>
+ * Start with {@code adb shell am startservice -n uk.co.johnsto.mailcircle/.PipelineBenchmarkService},
+ * optionally passing {@code --el latency <ms per query>} and {@code --ei events <changes per run>}.
+ */
+public class PipelineBenchmarkService extends IntentService implements Consts {
+    public static final String EXTRA_LATENCY = "latency";
+    public static final String EXTRA_EVENTS = "events";
+
+    private static final int[] ACCOUNT_COUNTS = {1, 10, 50, 200};
+    private static final int[] LABEL_COUNTS = {10, 100, 500, 2000};
+
+    // How long (ms) to wait for a check, and for checks to stop before a run starts
+    private static final long CHECK_TIMEOUT = 60000;
+    private static final long SETTLE_TIME = 1500;
+
+    private final LinkedBlockingQueue<Check> mChecks = new LinkedBlockingQueue<Check>();
+
+    private final NotificationService.CheckListener mListener = new NotificationService.CheckListener() {
+        @Override
+        public void onChecked(long durationNanos, boolean posted) {
+            mChecks.add(new Check(durationNanos, System.nanoTime(), posted));
+        }
+    };
+
+    public PipelineBenchmarkService() {
+        super("PipelineBenchmark");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final long latency = intent.getLongExtra(EXTRA_LATENCY, 5);
+        final int events = Math.max(1, intent.getIntExtra(EXTRA_EVENTS, 20));
+        final boolean wasRunning = NotificationService.isRunning();
+
+        final StringBuilder report = new StringBuilder();
+        report.append("# ").append(latency).append("ms per query, ").append(events)
+                .append(" changes per run; change-to-check times include the check quiet window\n");
+        report.append("# accounts labels first-check-ms checks/s check-ms(p50 p90 p99)"
+                + " change-to-check-ms(p50 p90 p99) notifies timeouts\n");
+
+        NotificationService.setCheckListener(mListener);
+        try {
+            for (int accountCount : ACCOUNT_COUNTS) {
+                for (int labelCount : LABEL_COUNTS) {
+                    final String[] accounts = new String[accountCount];
+                    for (int i = 0; i < accountCount; i++) {
+                        accounts[i] = "bench" + i + "@example.com";
+                    }
+                    Settings.setOverrides(FakeGmailProvider.AUTHORITY, accounts);
+
+                    final String result = run(accounts, labelCount, latency, events);
+                    Log.i(TAG, "Pipeline benchmark: " + result);
+                    report.append(result).append('\n');
+                }
+            }
+        } catch (InterruptedException ex) {
+            Log.w(TAG, "Pipeline benchmark interrupted");
+        } finally {
+            NotificationService.setCheckListener(null);
+            stopService(new Intent(this, NotificationService.class));
+            Settings.setOverrides(null, null);
+            if (wasRunning) {
+                startService(new Intent(this, NotificationService.class)
+                        .setAction(NotificationService.ACTION_INIT));
+            }
+        }
+
+        save(report.toString());
+    }
+
+    /**
+     * Restarts the service against the fake provider, waits for it to settle, then changes one
+     * account at a time and waits for the resulting check.
+     *
+     * @return One line of results
+     */
+    private String run(String[] accounts, int labelCount, long latency, int events)
+            throws InterruptedException {
+        stopService(new Intent(this, NotificationService.class));
+        FakeGmailProvider.configure(labelCount, latency);
+        mChecks.clear();
+        startService(new Intent(this, NotificationService.class)
+                .setAction(NotificationService.ACTION_INIT));
+
+        // First check resolves every label from scratch
+        final Check first = mChecks.poll(CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
+        while (mChecks.poll(SETTLE_TIME, TimeUnit.MILLISECONDS) != null) {
+            // Wait for checks triggered by the settings change to finish
+        }
+
+        final long[] durations = new long[events];
+        final long[] delays = new long[events];
+        int completed = 0;
+        int notifies = 0;
+        int timeouts = 0;
+        for (int i = 0; i < events; i++) {
+            mChecks.clear();
+            final long start = System.nanoTime();
+            FakeGmailProvider.change(this, accounts[i % accounts.length]);
+            final Check check = mChecks.poll(CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (check == null) {
+                timeouts++;
+                continue;
+            }
+            durations[completed] = check.durationNanos;
+            delays[completed] = check.completedAt - start;
+            completed++;
+            if (check.posted) {
+                notifies++;
+            }
+        }
+
+        long total = 0;
+        for (int i = 0; i < completed; i++) {
+            total += durations[i];
+        }
+        final double throughput = total > 0 ? completed * 1e9 / total : 0;
+        final long[] sortedDurations = Arrays.copyOf(durations, completed);
+        final long[] sortedDelays = Arrays.copyOf(delays, completed);
+        Arrays.sort(sortedDurations);
+        Arrays.sort(sortedDelays);
+
+        return accounts.length + " " + labelCount + " "
+                + (first != null ? millis(first.durationNanos) : "-") + " "
+                + String.format("%.1f", throughput) + " "
+                + millis(percentile(sortedDurations, 0.5)) + " "
+                + millis(percentile(sortedDurations, 0.9)) + " "
+                + millis(percentile(sortedDurations, 0.99)) + " "
+                + millis(percentile(sortedDelays, 0.5)) + " "
+                + millis(percentile(sortedDelays, 0.9)) + " "
+                + millis(percentile(sortedDelays, 0.99)) + " "
+                + notifies + " " + timeouts;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private void save(String report) {
+        final File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        try {
+            final Writer out = new OutputStreamWriter(
+                    new FileOutputStream(new File(dir, "pipeline_benchmark.txt")), "UTF-8");
+            try {
+                out.write(report);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Couldn't save pipeline benchmark results", ex);
+        }
+    }
+
+    /**
+     * A check reported by the service.
+     */
+    private static class Check {
+        final long durationNanos;
+        final long completedAt;
+        final boolean posted;
+
+        Check(long durationNanos, long completedAt, boolean posted) {
+            this.durationNanos = durationNanos;
+            this.completedAt = completedAt;
+            this.posted = posted;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package uk.co.johnsto.mailcircle;
+
+import android.content.ComponentCallbacks2;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Keeps track of the caches held by a long-lived component, so that they can be dropped in order
+ * of how cheap they are to rebuild as memory gets tighter, and so that the footprint of each can
+ * be reported in one place.
+ * <p/>
+ * Caches are not thread-safe in general, so the registry, including {@link #dump}, should only
+ * be used from the thread that owns them.
+ */
+public class CacheRegistry {
+    /**
+     * How much memory pressure it takes for a cache to be dropped. Trimming at a tier drops the
+     * caches of that tier and all lower ones.
+     */
+    public static enum Tier {
+        BITMAPS, // rendered bitmaps, which can be redrawn without any IPC
+        METADATA, // label URIs, intents and settings, which can be looked up again
+        STATE // everything not needed to keep showing the current notification
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final int[] mTrimCounts = new int[Tier.values().length];
+
+    /**
+     * Adds a cache to the registry.
+     *
+     * @param name  Name shown when dumping the registry
+     * @param tier  Tier at which the cache is dropped
+     * @param cache The cache
+     */
+    public void register(String name, Tier tier, Cache cache) {
+        mEntries.add(new Entry(name, tier, cache));
+    }
+
+    /**
+     * Drops every cache at or below the given tier.
+     *
+     * @param tier Highest tier to drop
+     * @return Approximate number of bytes released
+     */
+    public long trim(Tier tier) {
+        long released = 0;
+        for (Entry entry : mEntries) {
+            if (entry.tier.compareTo(tier) <= 0) {
+                released += entry.cache.getByteCount();
+                entry.cache.clear();
+            }
+        }
+        mTrimCounts[tier.ordinal()]++;
+        return released;
+    }
+
+    /**
+     * Gets the tier to trim for a level passed to {@link ComponentCallbacks2#onTrimMemory}.
+     * Levels sent while the process is running in the foreground are mapped to the tier of the
+     * background level that's equally urgent.
+     *
+     * @param level Trim level
+     * @return Tier to trim, or null if nothing needs dropping
+     */
+    public static Tier getTier(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return Tier.STATE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return Tier.METADATA;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return Tier.BITMAPS;
+        }
+        // UI_HIDDEN only concerns activities
+        return null;
+    }
+
+    /**
+     * @return Approximate number of bytes held by all registered caches.
+     */
+    public long getByteCount() {
+        long bytes = 0;
+        for (Entry entry : mEntries) {
+            bytes += entry.cache.getByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * Prints the footprint of each cache and the number of trims at each tier.
+     *
+     * @param writer Writer to print to
+     * @param prefix Prefix for each line
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        for (Entry entry : mEntries) {
+            writer.println(prefix + entry.name + ": " + entry.cache.getByteCount() + " bytes ("
+                    + entry.tier.name().toLowerCase(Locale.US) + ")");
+        }
+        writer.println(prefix + "total: " + getByteCount() + " bytes");
+        writer.print(prefix + "trims:");
+        for (Tier tier : Tier.values()) {
+            writer.print(" " + tier.name().toLowerCase(Locale.US) + "=" + mTrimCounts[tier.ordinal()]);
+        }
+        writer.println();
+    }
+
+    /**
+     * Estimates the heap used by a string.
+     *
+     * @param s String, may be null
+     * @return Approximate size in bytes
+     */
+    public static long sizeOf(String s) {
+        // Object headers and fields of the string and its char array, plus two bytes per char
+        return s != null ? 40 + 2 * s.length() : 0;
+    }
+
+    /**
+     * A cache that can report its size and be emptied.
+     */
+    public interface Cache {
+        /**
+         * @return Approximate number of bytes held by the cache.
+         */
+        long getByteCount();
+
+        /**
+         * Empties the cache.
+         */
+        void clear();
+    }
+
+    private static class Entry {
+        final String name;
+        final Tier tier;
+        final Cache cache;
+
+        Entry(String name, Tier tier, Cache cache) {
+            this.name = name;
+            this.tier = tier;
+            this.cache = cache;
+        }
+    }
+}
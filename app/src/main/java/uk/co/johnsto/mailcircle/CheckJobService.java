@@ -0,0 +1,141 @@
+package uk.co.johnsto.mailcircle;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs a check when the content of a watched label changes, as an alternative to keeping
+ * {@link NotificationService} resident just to hold its content observers. The system batches
+ * changes itself, and the service only runs for as long as each check takes.
+ * <p/>
+ * Content URI triggers need Android 7.0 (API 24) or later. A triggered job only fires once, so
+ * the service schedules it again after every check.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class CheckJobService extends JobService implements Consts {
+    private static final int JOB_ID = 1;
+
+    // Job waiting for the service to finish its check
+    private static volatile CheckJobService sActive;
+    private JobParameters mParams;
+
+    /**
+     * Schedules a check for the next time any of the given URIs change.
+     *
+     * @param context     Context
+     * @param labelUris   URIs of individual labels to watch
+     * @param treeUris    URIs to watch along with everything beneath them
+     * @param updateDelay Time (ms) without further changes to wait before running
+     * @param maxDelay    Maximum time (ms) to wait after the first change
+     */
+    public static void schedule(Context context, Collection<Uri> labelUris,
+                                Collection<Uri> treeUris, long updateDelay, long maxDelay) {
+        final JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (labelUris.isEmpty() && treeUris.isEmpty()) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+
+        final JobInfo.Builder builder = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CheckJobService.class));
+        for (Uri uri : labelUris) {
+            builder.addTriggerContentUri(new JobInfo.TriggerContentUri(uri, 0));
+        }
+        for (Uri uri : treeUris) {
+            builder.addTriggerContentUri(new JobInfo.TriggerContentUri(uri,
+                    JobInfo.TriggerContentUri.FLAG_NOTIFY_FOR_DESCENDANTS));
+        }
+        builder.setTriggerContentUpdateDelay(updateDelay);
+        builder.setTriggerContentMaxDelay(maxDelay);
+
+        if (scheduler.schedule(builder.build()) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "Couldn't schedule check job");
+        }
+    }
+
+    /**
+     * Stops watching for changes with jobs.
+     *
+     * @param context Context
+     */
+    public static void cancel(Context context) {
+        final JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.cancel(JOB_ID);
+    }
+
+    /**
+     * Tells the running job, if any, that the service has finished checking.
+     */
+    public static void onCheckFinished() {
+        final CheckJobService job = sActive;
+        if (job != null) {
+            sActive = null;
+            job.jobFinished(job.mParams, false);
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        // Only re-query the accounts whose labels changed, unless there were too many changes
+        // for the system to list, or a URI doesn't name an enabled account
+        String[] accountNames = findAccounts(params.getTriggeredContentUris());
+
+        mParams = params;
+        sActive = this;
+        final Intent intent = new Intent(this, NotificationService.class)
+                .setAction(NotificationService.ACTION_JOB_CHECK);
+        if (accountNames != null) {
+            intent.putExtra(NotificationService.EXTRA_ACCOUNTS, accountNames);
+        }
+        startService(intent);
+        return true;
+    }
+
+    /**
+     * Finds the accounts that the given label URIs belong to.
+     *
+     * @param uris Triggered content URIs, may be null
+     * @return Enabled accounts named by the URIs, or null if they can't all be matched to one,
+     * in which case every account should be checked
+     */
+    private String[] findAccounts(Uri[] uris) {
+        if (uris == null) {
+            return null;
+        }
+        final Settings.Snapshot settings = new Settings(this).getSnapshot();
+        final Set<String> names = new HashSet<String>();
+        for (Uri uri : uris) {
+            // Label URIs look like content://<authority>/<account>/label/<id>
+            final List<String> segments = uri.getPathSegments();
+            if (segments.isEmpty() || settings.indexOf(segments.get(0)) < 0) {
+                return null;
+            }
+            names.add(segments.get(0));
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (sActive == this) {
+            sActive = null;
+        }
+        return true;
+    }
+}
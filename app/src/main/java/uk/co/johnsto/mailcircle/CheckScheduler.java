@@ -0,0 +1,211 @@
+package uk.co.johnsto.mailcircle;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Coalesces bursts of check requests into a single check.
+ * <p/>
+ * Each trigger (re)starts a quiet window; the task runs once no further trigger has arrived for
+ * the length of that window. To stop a steady trickle of triggers from postponing the task
+ * forever, it always runs within the maximum latency of the first trigger in the burst.
+ * <p/>
+ * Triggers may name the account that changed, in which case the task is told which accounts
+ * need refreshing; a trigger without an account asks for everything to be refreshed.
+ * <p/>
+ * A running task may poll {@link #isSuperseded()} to find out whether a newer trigger has
+ * arrived since it started, and if so abandon its work in favour of the pending run.
+ */
+public class CheckScheduler {
+    private final Handler mHandler;
+    private final Task mTask;
+    private final long mQuietWindow;
+    private final long mMaxLatency;
+
+    // Uptime of the first trigger in the pending burst, or -1 if nothing is pending
+    private long mBurstStart = -1;
+
+    // Accounts changed in the pending burst, or null if all accounts need refreshing
+    private Set<String> mAccounts = new HashSet<String>();
+    // Set handed to the last run, reused for the next burst once that run has finished
+    private Set<String> mSpareAccounts;
+
+    private int mTriggerCount;
+    private int mCoalescedCount;
+    private int mRunCount;
+    private int mAbandonedCount;
+
+    // Whether the running task has been told it was superseded, and whether the previous one was
+    private boolean mAbandoned;
+    private boolean mLastAbandoned;
+
+    private final Runnable mRunner = new Runnable() {
+        @Override
+        public void run() {
+            final Set<String> accounts;
+            synchronized (CheckScheduler.this) {
+                accounts = mAccounts;
+                mAccounts = mSpareAccounts != null ? mSpareAccounts : new HashSet<String>();
+                mSpareAccounts = null;
+                mBurstStart = -1;
+                mRunCount++;
+                mLastAbandoned = mAbandoned;
+                mAbandoned = false;
+            }
+            mTask.run(accounts);
+            if (accounts != null) {
+                accounts.clear();
+                synchronized (CheckScheduler.this) {
+                    mSpareAccounts = accounts;
+                }
+            }
+        }
+    };
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param handler     Handler on which the task will be run
+     * @param quietWindow Time (ms) without triggers to wait before running the task
+     * @param maxLatency  Maximum time (ms) between a trigger and the task running
+     * @param task        Task to run
+     */
+    public CheckScheduler(Handler handler, long quietWindow, long maxLatency, Task task) {
+        mHandler = handler;
+        mQuietWindow = quietWindow;
+        mMaxLatency = Math.max(quietWindow, maxLatency);
+        mTask = task;
+    }
+
+    /**
+     * Requests that the task be run for all accounts. Requests that arrive while a run is already
+     * pending are folded into that run.
+     */
+    public void trigger() {
+        trigger((String) null);
+    }
+
+    /**
+     * Requests that the task be run for the given account. Requests that arrive while a run is
+     * already pending are folded into that run.
+     *
+     * @param accountName The account that changed, or null if any or all accounts may have
+     */
+    public synchronized void trigger(String accountName) {
+        if (accountName == null) {
+            mAccounts = null;
+        } else if (mAccounts != null) {
+            mAccounts.add(accountName);
+        }
+        schedule();
+    }
+
+    /**
+     * Requests that the task be run for the given accounts. An empty collection asks for a run
+     * that refreshes nothing, e.g. to redraw after a change of appearance.
+     *
+     * @param accountNames The accounts that changed
+     */
+    public synchronized void trigger(Collection<String> accountNames) {
+        if (mAccounts != null) {
+            mAccounts.addAll(accountNames);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        final long now = SystemClock.uptimeMillis();
+        mTriggerCount++;
+
+        if (mBurstStart < 0) {
+            mBurstStart = now;
+        } else {
+            mCoalescedCount++;
+        }
+
+        final long runAt = Math.min(now + mQuietWindow, mBurstStart + mMaxLatency);
+        mHandler.removeCallbacks(mRunner);
+        mHandler.postAtTime(mRunner, runAt);
+    }
+
+    /**
+     * Drops any pending run of the task.
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mRunner);
+        mAccounts = new HashSet<String>();
+        mBurstStart = -1;
+    }
+
+    /**
+     * Determines whether the running task has been superseded by a newer trigger. Tasks that see
+     * true are expected to stop and throw away their result, as a fresh run is already pending.
+     * <p/>
+     * To guarantee progress under constant churn, a run straight after an abandoned one is never
+     * considered superseded.
+     *
+     * @return True if the running task should be abandoned.
+     */
+    public synchronized boolean isSuperseded() {
+        if (mBurstStart < 0 || mLastAbandoned) {
+            return false;
+        }
+        if (!mAbandoned) {
+            mAbandoned = true;
+            mAbandonedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if a run of the task is pending.
+     */
+    public synchronized boolean isPending() {
+        return mBurstStart >= 0;
+    }
+
+    /**
+     * @return Total number of triggers received.
+     */
+    public synchronized int getTriggerCount() {
+        return mTriggerCount;
+    }
+
+    /**
+     * @return Number of triggers that were folded into an already pending run.
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return Number of times the task has been run.
+     */
+    public synchronized int getRunCount() {
+        return mRunCount;
+    }
+
+    /**
+     * @return Number of runs that were abandoned because a newer trigger arrived.
+     */
+    public synchronized int getAbandonedCount() {
+        return mAbandonedCount;
+    }
+
+    /**
+     * Work run by the scheduler.
+     */
+    public interface Task {
+        /**
+         * Runs the task.
+         *
+         * @param accountNames Accounts that changed, or null if all accounts should be refreshed.
+         *                     The set is reused once the task returns, so mustn't be kept.
+         */
+        void run(Set<String> accountNames);
+    }
+}
@@ -0,0 +1,189 @@
+package uk.co.johnsto.mailcircle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size log of recent checks, kept in a memory-mapped file as a ring buffer so that it
+ * survives the process being killed without ever being explicitly flushed.
+ * <p/>
+ * The file starts with a header, followed by fixed-size records:
+ * <pre>
+ * header: int magic, int version, int record size, int capacity, long next sequence, long 0
+ * record: long sequence (0 if not written), long time (ms), byte trigger sources,
+ *         byte flags, short 0, int total unread (-1 if unknown), int duration (us) of each
+ *         {@link PipelineMetrics.Stage}
+ * </pre>
+ * Records are written lock-free: each append claims the next sequence number, and writes its
+ * sequence number last so that a half-written record is never decoded.
+ */
+public class EventTrace {
+    private static final int MAGIC = 0x4d435452; // "MCTR"
+    private static final int VERSION = 1;
+
+    private static final int STAGES = PipelineMetrics.Stage.values().length;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 24 + 4 * STAGES;
+    private static final int HEADER_NEXT = 16;
+
+    private static final int FLAG_POSTED = 1;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final AtomicLong mSequence;
+
+    private EventTrace(MappedByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mSequence = new AtomicLong(buffer.getLong(HEADER_NEXT));
+    }
+
+    /**
+     * Opens the trace in the given file, creating it or starting afresh if the file doesn't hold
+     * a trace of the same layout.
+     *
+     * @param file     File to keep the trace in
+     * @param capacity Number of records to keep
+     * @return The trace
+     * @throws IOException if the file can't be mapped
+     */
+    public static EventTrace open(File file, int capacity) throws IOException {
+        final int size = HEADER_SIZE + capacity * RECORD_SIZE;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer buffer;
+        try {
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid once the file is closed
+            raf.close();
+        }
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != RECORD_SIZE || buffer.getInt(12) != capacity) {
+            for (int i = 0; i < size; i += 8) {
+                buffer.putLong(i, 0);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(12, capacity);
+        }
+        return new EventTrace(buffer, capacity);
+    }
+
+    /**
+     * Appends a record of a check, overwriting the oldest record once the trace is full.
+     *
+     * @param sources     Trigger sources, as a bit mask of {@link PipelineMetrics.Source} ordinals
+     * @param stageMicros Duration (us) of each stage, indexed by {@link PipelineMetrics.Stage} ordinal
+     * @param total       Total unread count shown, or -1 if unknown
+     * @param posted      True if the notification was posted or cancelled
+     */
+    public void append(int sources, int[] stageMicros, int total, boolean posted) {
+        final long sequence = mSequence.incrementAndGet();
+        final int offset = HEADER_SIZE + (int) ((sequence - 1) % mCapacity) * RECORD_SIZE;
+
+        mBuffer.putLong(offset, 0);
+        mBuffer.putLong(offset + 8, System.currentTimeMillis());
+        mBuffer.put(offset + 16, (byte) sources);
+        mBuffer.put(offset + 17, (byte) (posted ? FLAG_POSTED : 0));
+        mBuffer.putShort(offset + 18, (short) 0);
+        mBuffer.putInt(offset + 20, total);
+        for (int i = 0; i < STAGES; i++) {
+            mBuffer.putInt(offset + 24 + 4 * i, i < stageMicros.length ? stageMicros[i] : 0);
+        }
+        mBuffer.putLong(offset, sequence);
+        mBuffer.putLong(HEADER_NEXT, sequence);
+    }
+
+    /**
+     * Reads the raw contents of a trace file.
+     *
+     * @param file Trace file
+     * @return Its contents
+     * @throws IOException if the file can't be read
+     */
+    public static byte[] read(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Turns the contents of a trace file into text, one line per record, oldest first.
+     *
+     * @param data Contents of a trace file
+     * @return Decoded records
+     * @throws IOException if the data isn't a trace
+     */
+    public static String decode(byte[] data) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an event trace");
+        }
+        if (buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Unsupported event trace version " + buffer.getInt(4));
+        }
+        final int capacity = buffer.getInt(12);
+        final long next = buffer.getLong(HEADER_NEXT);
+        if (data.length < HEADER_SIZE + capacity * RECORD_SIZE) {
+            throw new IOException("Truncated event trace");
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        final PipelineMetrics.Source[] sources = PipelineMetrics.Source.values();
+        final PipelineMetrics.Stage[] stages = PipelineMetrics.Stage.values();
+        final StringBuilder text = new StringBuilder();
+
+        // Oldest record is the one after the newest, unless the ring hasn't wrapped yet
+        for (int i = 0; i < capacity; i++) {
+            final int slot = (int) ((next + i) % capacity);
+            final int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            final long sequence = buffer.getLong(offset);
+            if (sequence == 0) {
+                continue;
+            }
+
+            text.append(format.format(new Date(buffer.getLong(offset + 8))));
+            text.append(" #").append(sequence);
+
+            final int mask = buffer.get(offset + 16) & 0xff;
+            text.append(" triggers=");
+            String sep = "";
+            for (PipelineMetrics.Source source : sources) {
+                if ((mask & (1 << source.ordinal())) != 0) {
+                    text.append(sep).append(source.name().toLowerCase(Locale.US));
+                    sep = ",";
+                }
+            }
+            if (sep.length() == 0) {
+                text.append("none");
+            }
+
+            text.append(" total=").append(buffer.getInt(offset + 20));
+            if ((buffer.get(offset + 17) & FLAG_POSTED) != 0) {
+                text.append(" posted");
+            }
+            for (PipelineMetrics.Stage stage : stages) {
+                text.append(' ').append(stage.name().toLowerCase(Locale.US)).append('=')
+                        .append(buffer.getInt(offset + 24 + 4 * stage.ordinal())).append("us");
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+}
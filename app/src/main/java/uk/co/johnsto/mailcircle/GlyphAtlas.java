@@ -0,0 +1,173 @@
+package uk.co.johnsto.mailcircle;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Digits and the grouping separator, pre-rendered at one size and colour along with their drop
+ * shadows, so that a number can be drawn by copying glyphs rather than laying out text.
+ * <p/>
+ * Glyphs are placed by their advance widths, so the result matches {@link Canvas#drawText} to
+ * within a pixel or so; kerning between digits is ignored.
+ */
+class GlyphAtlas {
+    private final float mTextSize;
+    private final int mTextColor;
+
+    // Characters in the atlas, with the advance and vertical bounds of each
+    private final char[] mChars;
+    private final float[] mAdvances;
+    private final int[] mTops;
+    private final int[] mBottoms;
+
+    // Glyph cells: text glyphs in the first row, their shadows in the second
+    private final Bitmap mBitmap;
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final int mPad;
+    private final int mBaseline;
+
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+
+    /**
+     * Renders a new atlas for the current locale.
+     *
+     * @param textSize  Text size, in pixels
+     * @param textColor Text colour
+     */
+    GlyphAtlas(float textSize, int textColor) {
+        mTextSize = textSize;
+        mTextColor = textColor;
+
+        final DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance();
+        mChars = new char[11];
+        for (int i = 0; i < 10; i++) {
+            mChars[i] = (char) (symbols.getZeroDigit() + i);
+        }
+        mChars[10] = symbols.getGroupingSeparator();
+
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.HINTING_ON);
+        paint.setTextSize(textSize);
+        mAdvances = new float[mChars.length];
+        mTops = new int[mChars.length];
+        mBottoms = new int[mChars.length];
+        final Rect bounds = new Rect();
+        float maxAdvance = 0;
+        for (int i = 0; i < mChars.length; i++) {
+            mAdvances[i] = paint.measureText(mChars, i, 1);
+            paint.getTextBounds(mChars, i, 1, bounds);
+            mTops[i] = bounds.top;
+            mBottoms[i] = bounds.bottom;
+            maxAdvance = Math.max(maxAdvance, mAdvances[i]);
+        }
+
+        // Leave room around each glyph for anything drawn outside its advance
+        mPad = (int) Math.ceil(textSize / 8);
+        mCellWidth = (int) Math.ceil(maxAdvance) + 2 * mPad;
+        mCellHeight = (int) Math.ceil(paint.descent() - paint.ascent()) + 2 * mPad;
+        mBaseline = mPad + (int) Math.ceil(-paint.ascent());
+
+        mBitmap = Bitmap.createBitmap(mCellWidth * mChars.length, mCellHeight * 2,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(mBitmap);
+        for (int i = 0; i < mChars.length; i++) {
+            final int x = i * mCellWidth + mPad;
+            paint.setColor(textColor);
+            canvas.drawText(mChars, i, 1, x, mBaseline, paint);
+            paint.setColor(NotificationIconFactory.SHADOW_COLOR);
+            canvas.drawText(mChars, i, 1, x, mCellHeight + mBaseline, paint);
+        }
+    }
+
+    /**
+     * @return True if the atlas was rendered at the given size and colour.
+     */
+    boolean matches(float textSize, int textColor) {
+        return mTextSize == textSize && mTextColor == textColor;
+    }
+
+    /**
+     * @return True if every character of the text is in the atlas.
+     */
+    boolean canDraw(char[] text, int length) {
+        for (int i = 0; i < length; i++) {
+            if (indexOf(text[i]) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Measures the height of the text, as {@link Paint#getTextBounds} would.
+     */
+    int getTextHeight(char[] text, int length) {
+        int top = 0;
+        int bottom = 0;
+        for (int i = 0; i < length; i++) {
+            final int index = indexOf(text[i]);
+            top = Math.min(top, mTops[index]);
+            bottom = Math.max(bottom, mBottoms[index]);
+        }
+        return bottom - top;
+    }
+
+    /**
+     * Draws the text with its shadow, horizontally centred on the given point.
+     *
+     * @param canvas   Canvas to draw to
+     * @param text     Text, which must only contain characters in the atlas
+     * @param length   Length of the text
+     * @param centreX  Horizontal centre of the text
+     * @param baseline Baseline of the text
+     */
+    void draw(Canvas canvas, char[] text, int length, float centreX, int baseline) {
+        float width = 0;
+        for (int i = 0; i < length; i++) {
+            width += mAdvances[indexOf(text[i])];
+        }
+        final float left = centreX - width / 2;
+
+        // All shadows first, so that no shadow falls over the glyph before it
+        final int offset = NotificationIconFactory.SHADOW_OFFSET;
+        drawRow(canvas, text, length, left + offset, baseline + offset, 1);
+        drawRow(canvas, text, length, left, baseline, 0);
+    }
+
+    private void drawRow(Canvas canvas, char[] text, int length, float left, int baseline, int row) {
+        float x = left;
+        for (int i = 0; i < length; i++) {
+            final int index = indexOf(text[i]);
+            final int cellLeft = index * mCellWidth;
+            final int cellTop = row * mCellHeight;
+            mSrc.set(cellLeft, cellTop, cellLeft + mCellWidth, cellTop + mCellHeight);
+
+            final int dstLeft = Math.round(x) - mPad;
+            final int dstTop = baseline - mBaseline;
+            mDst.set(dstLeft, dstTop, dstLeft + mCellWidth, dstTop + mCellHeight);
+            canvas.drawBitmap(mBitmap, mSrc, mDst, null);
+            x += mAdvances[index];
+        }
+    }
+
+    private int indexOf(char c) {
+        for (int i = 0; i < mChars.length; i++) {
+            if (mChars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Size of the atlas bitmap, in bytes.
+     */
+    int getByteCount() {
+        return mBitmap.getAllocationByteCount();
+    }
+}
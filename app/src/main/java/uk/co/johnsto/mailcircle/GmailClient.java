@@ -0,0 +1,135 @@
+package uk.co.johnsto.mailcircle;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a connection to the Gmail content provider open between queries, rather than acquiring
+ * and releasing the provider for every query as {@link ContentResolver#query} does.
+ * <p/>
+ * The connection is unstable, so if the Gmail process dies this app isn't killed along with it;
+ * instead the connection is reacquired and the query retried once.
+ */
+public class GmailClient implements Consts {
+    private final ContentResolver mResolver;
+    private final String mAuthority;
+    private ContentProviderClient mClient;
+    private int mAcquireCount;
+    private int mReacquireCount;
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    /**
+     * @param resolver  Resolver used to acquire the provider
+     * @param authority Authority of the provider, normally {@link com.google.android.gm.contentprovider.GmailContract#AUTHORITY}
+     */
+    public GmailClient(ContentResolver resolver, String authority) {
+        mResolver = resolver;
+        mAuthority = authority;
+    }
+
+    /**
+     * Gets the URI of the labels of an account, as
+     * {@link com.google.android.gm.contentprovider.GmailContract.Labels#getLabelsUri} does for
+     * Gmail itself.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     * @return URI of the account's labels on this client's provider
+     */
+    public Uri getLabelsUri(String accountName) {
+        return Uri.parse("content://" + mAuthority + "/" + accountName + "/labels");
+    }
+
+    /**
+     * Queries the provider, as {@link ContentResolver#query}.
+     *
+     * @return A cursor, or null if the provider isn't available.
+     * @throws android.os.OperationCanceledException if the signal was cancelled
+     */
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal signal) {
+        mQueryCount.incrementAndGet();
+        ContentProviderClient client = acquire();
+        if (client == null) {
+            return null;
+        }
+
+        try {
+            return client.query(uri, projection, selection, selectionArgs, sortOrder, signal);
+        } catch (DeadObjectException ex) {
+            // Provider process died; reconnect and try again
+            Log.w(TAG, "Gmail provider died, reconnecting");
+            client = reacquire(client);
+            if (client == null) {
+                return null;
+            }
+            try {
+                return client.query(uri, projection, selection, selectionArgs, sortOrder, signal);
+            } catch (RemoteException ex2) {
+                Log.w(TAG, "Couldn't query Gmail provider", ex2);
+                return null;
+            }
+        } catch (RemoteException ex) {
+            Log.w(TAG, "Couldn't query Gmail provider", ex);
+            return null;
+        }
+    }
+
+    private synchronized ContentProviderClient acquire() {
+        if (mClient == null) {
+            mClient = mResolver.acquireUnstableContentProviderClient(mAuthority);
+            if (mClient != null) {
+                mAcquireCount++;
+            }
+        }
+        return mClient;
+    }
+
+    private synchronized ContentProviderClient reacquire(ContentProviderClient dead) {
+        if (mClient == dead) {
+            // Another thread may have reconnected already
+            mClient.release();
+            mClient = null;
+            mReacquireCount++;
+        }
+        return acquire();
+    }
+
+    /**
+     * Releases the connection to the provider. It's reacquired if the client is used again.
+     */
+    public synchronized void release() {
+        if (mClient != null) {
+            mClient.release();
+            mClient = null;
+        }
+    }
+
+    /**
+     * @return Number of times the provider has been acquired.
+     */
+    public synchronized int getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * @return Number of queries made through the client.
+     */
+    public int getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    /**
+     * @return Number of times the provider had to be reacquired after its process died.
+     */
+    public synchronized int getReacquireCount() {
+        return mReacquireCount;
+    }
+}
@@ -0,0 +1,148 @@
+package uk.co.johnsto.mailcircle;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves canonical label names to the URIs of individual Gmail labels, so that a label can be
+ * queried and observed directly rather than by scanning every label on the account.
+ * <p/>
+ * Resolved URIs are cached until invalidated, e.g. when the label turns out to have been renamed
+ * or deleted.
+ */
+public class LabelResolver {
+    private final GmailClient mClient;
+    private final Map<String, LabelRef> mLabels = new HashMap<String, LabelRef>();
+
+    public LabelResolver(GmailClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Gets the URI of a single label, scanning the account's labels if it isn't already known.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     * @param label       Canonical label name
+     * @return URI of the label, or null if the account has no such label.
+     */
+    public Uri getLabelUri(String accountName, String label) {
+        return getLabelUri(accountName, label, null);
+    }
+
+    /**
+     * Gets the URI of a single label, scanning the account's labels if it isn't already known.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     * @param label       Canonical label name
+     * @param signal      Signal to cancel the scan, may be null
+     * @return URI of the label, or null if the account has no such label.
+     * @throws android.os.OperationCanceledException if the signal was cancelled
+     */
+    public Uri getLabelUri(String accountName, String label, CancellationSignal signal) {
+        synchronized (this) {
+            LabelRef ref = mLabels.get(accountName);
+            if (ref != null && ref.canonicalName.equals(label)) {
+                return ref.uri;
+            }
+        }
+
+        // Scan outside the lock so that other accounts can be resolved at the same time
+        Uri uri = resolve(accountName, label, signal);
+        synchronized (this) {
+            if (uri != null) {
+                mLabels.put(accountName, new LabelRef(label, uri));
+            } else {
+                mLabels.remove(accountName);
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Gets the URI of a single label if it has already been resolved, without querying.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     * @param label       Canonical label name
+     * @return URI of the label, or null if it hasn't been resolved (or doesn't exist).
+     */
+    public synchronized Uri peekLabelUri(String accountName, String label) {
+        LabelRef ref = mLabels.get(accountName);
+        return ref != null && ref.canonicalName.equals(label) ? ref.uri : null;
+    }
+
+    /**
+     * Forgets the label URI resolved for the account.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     */
+    public synchronized void invalidate(String accountName) {
+        mLabels.remove(accountName);
+    }
+
+    /**
+     * Forgets all resolved label URIs.
+     */
+    public synchronized void clear() {
+        mLabels.clear();
+    }
+
+    /**
+     * @return Approximate number of bytes held by resolved label URIs.
+     */
+    public synchronized long getByteCount() {
+        long bytes = 0;
+        for (Map.Entry<String, LabelRef> entry : mLabels.entrySet()) {
+            // Map entry and reference, plus the strings they hold
+            bytes += 64 + CacheRegistry.sizeOf(entry.getKey())
+                    + CacheRegistry.sizeOf(entry.getValue().canonicalName)
+                    + CacheRegistry.sizeOf(entry.getValue().uri.toString());
+        }
+        return bytes;
+    }
+
+    private Uri resolve(String accountName, String label, CancellationSignal signal) {
+        Cursor cursor = mClient.query(
+                mClient.getLabelsUri(accountName),
+                LabelQuery.PROJECTION, null, null, null, signal
+        );
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (label.equals(cursor.getString(LabelQuery.CANONICAL_NAME))) {
+                    String uri = cursor.getString(LabelQuery.URI);
+                    return uri != null ? Uri.parse(uri) : null;
+                }
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static class LabelRef {
+        final String canonicalName;
+        final Uri uri;
+
+        LabelRef(String canonicalName, Uri uri) {
+            this.canonicalName = canonicalName;
+            this.uri = uri;
+        }
+    }
+
+    private interface LabelQuery {
+        String[] PROJECTION = {
+                GmailContract.Labels.CANONICAL_NAME,
+                GmailContract.Labels.URI,
+        };
+        int CANONICAL_NAME = 0;
+        int URI = 1;
+    }
+}
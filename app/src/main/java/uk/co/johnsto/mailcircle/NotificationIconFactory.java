@@ -7,14 +7,23 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
+import android.util.LruCache;
 
+import java.text.FieldPosition;
+import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * NotificationIconFactory produces the notification icon that appears on the lockscreen in
  * Android 5.
+ * <p/>
+ * A factory may be {@link #reset()} and used again; once it has seen icons of a given shape,
+ * building more of the same shape allocates nothing.
+ * <p/>
+ * When built through a {@link Cache}, icons are composed of two layers: the circle itself (disc,
+ * pie or ring), which is cached by its proportions, and the number drawn over it. A change that
+ * leaves the proportions alone, such as one more email in every account, only redraws the number.
  */
 public class NotificationIconFactory {
     public static enum Style {
@@ -42,13 +51,42 @@ public class NotificationIconFactory {
 
     public static Style DEFAULT_STYLE = Style.PIE;
 
-    private final BitmapDrawable mDrawable;
+    // Drop shadow drawn under the number
+    static final int SHADOW_COLOR = Color.argb(127, 0, 0, 0);
+    static final int SHADOW_OFFSET = 2;
+
+    private final Resources mResources;
+    private final Cache mCache;
+    private final int mWidth;
+    private final int mHeight;
+    private BitmapDrawable mDrawable;
     private int mColor = Color.BLACK;
     private int mTextColor = Color.WHITE;
     private int mNumber;
-    private List<Slice> mSlices;
     private Style mStyle = DEFAULT_STYLE;
 
+    // Pie slices, as parallel arrays of count and colour
+    private int[] mSliceCounts = new int[4];
+    private int[] mSliceColors = new int[4];
+    private float[] mSweeps = new float[4]; // sweep angle of each slice, see computeSweeps()
+    private int mSliceCount;
+
+    // Drawing state reused between icons
+    private final Paint mFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.HINTING_ON);
+    private final Rect mTextBounds = new Rect();
+    private final NumberFormat mNumberFormat = NumberFormat.getIntegerInstance();
+    private final FieldPosition mFieldPosition = new FieldPosition(0);
+    private final StringBuffer mText = new StringBuffer();
+    private char[] mTextChars = new char[16];
+    private Canvas mCanvas;
+    private boolean mGlyphAtlasEnabled;
+    private GlyphAtlas mGlyphAtlas;
+
+    // Keys used to look up icons and base layers in the cache, refilled for each build
+    private final Key mProbe = new Key();
+    private final BaseKey mBaseProbe = new BaseKey();
+
     /**
      * Creates a new factory
      *
@@ -56,7 +94,42 @@ public class NotificationIconFactory {
      * @param bitmap Base bitmap
      */
     public NotificationIconFactory(Resources res, Bitmap bitmap) {
+        mResources = res;
+        mCache = null;
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
         mDrawable = new BitmapDrawable(res, bitmap);
+        mTextPaint.setTextAlign(Paint.Align.CENTER);
+    }
+
+    /**
+     * Creates a new factory that reuses icons previously rendered into the given cache. Icons
+     * returned by {@link #build()} are owned by the cache and must not be modified.
+     *
+     * @param res    Resources (used to get correct dimensions)
+     * @param width  Icon width
+     * @param height Icon height
+     * @param cache  Cache of rendered icons
+     */
+    public NotificationIconFactory(Resources res, int width, int height, Cache cache) {
+        mResources = res;
+        mCache = cache;
+        mWidth = width;
+        mHeight = height;
+        mTextPaint.setTextAlign(Paint.Align.CENTER);
+    }
+
+    /**
+     * Clears the slices, number, colour and style so the factory can be used for another icon.
+     *
+     * @return The factory
+     */
+    public NotificationIconFactory reset() {
+        mSliceCount = 0;
+        mNumber = 0;
+        mColor = Color.BLACK;
+        mStyle = DEFAULT_STYLE;
+        return this;
     }
 
     /**
@@ -100,10 +173,13 @@ public class NotificationIconFactory {
      * @return The factory
      */
     public NotificationIconFactory addSlice(int count, int color) {
-        if (mSlices == null) {
-            mSlices = new ArrayList<Slice>();
+        if (mSliceCount == mSliceCounts.length) {
+            mSliceCounts = Arrays.copyOf(mSliceCounts, mSliceCount * 2);
+            mSliceColors = Arrays.copyOf(mSliceColors, mSliceCount * 2);
         }
-        mSlices.add(new Slice(count, color));
+        mSliceCounts[mSliceCount] = count;
+        mSliceColors[mSliceCount] = color;
+        mSliceCount++;
         return this;
     }
 
@@ -113,18 +189,34 @@ public class NotificationIconFactory {
      * @return total count
      */
     private int totalSliceCount() {
-        if (mSlices == null || mSlices.size() == 0) {
-            return 0;
-        }
-        Iterator<Slice> it = mSlices.iterator();
         int count = 0;
-        while (it.hasNext()) {
-            Slice slice = it.next();
-            count += slice.count;
+        for (int i = 0; i < mSliceCount; i++) {
+            count += mSliceCounts[i];
         }
         return count;
     }
 
+    /**
+     * Sets whether the number is drawn from pre-rendered glyphs rather than laid out as text.
+     * Glyphs are rendered the first time they're needed, so this only pays off when the factory
+     * is reused.
+     *
+     * @param enabled True to use the glyph atlas
+     * @return The factory
+     */
+    public NotificationIconFactory setGlyphAtlasEnabled(boolean enabled) {
+        mGlyphAtlasEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * @return Approximate number of bytes held by the factory between builds, i.e. its glyph
+     * atlas (the cache is accounted for separately).
+     */
+    public long getByteCount() {
+        return mGlyphAtlas != null ? mGlyphAtlas.getByteCount() : 0;
+    }
+
     /**
      * Set the number to display in the middle of the circle.
      *
@@ -143,12 +235,30 @@ public class NotificationIconFactory {
      */
     public BitmapDrawable draw() {
         final Bitmap bitmap = mDrawable.getBitmap();
-        final Canvas canvas = new Canvas(bitmap);
+        if (mCanvas == null) {
+            mCanvas = new Canvas();
+        }
+        final Canvas canvas = mCanvas;
+        canvas.setBitmap(bitmap);
         final int width = bitmap.getWidth();
         final int height = bitmap.getHeight();
 
         mDrawable.setAntiAlias(true);
 
+        computeSweeps();
+        drawBase(canvas);
+        drawNumber(canvas, width, height);
+
+        mDrawable.draw(canvas);
+        canvas.setBitmap(null);
+
+        return mDrawable;
+    }
+
+    /**
+     * Draws the circle, without the number.
+     */
+    private void drawBase(Canvas canvas) {
         switch (mStyle) {
             case DISC:
                 drawDisc(canvas);
@@ -160,37 +270,78 @@ public class NotificationIconFactory {
                 drawRing(canvas);
                 break;
         }
+    }
 
+    /**
+     * Draws the number, with its shadow, in the centre of the icon.
+     */
+    private void drawNumber(Canvas canvas, int width, int height) {
         // Draw text in dead centre
-        Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.HINTING_ON);
-        textPaint.setTextAlign(Paint.Align.CENTER);
-        textPaint.setColor(mTextColor);
+        final Paint textPaint = mTextPaint;
         textPaint.setTextSize(height / 2); // guesstimate good font size
 
-        String text = String.format("%,d", mNumber);
-        Rect bounds = new Rect();
-        textPaint.getTextBounds(text, 0, text.length(), bounds);
+        final int length = formatNumber();
         int textX = width / 2 + 2;
+
+        if (mGlyphAtlasEnabled) {
+            final float textSize = height / 2;
+            if (mGlyphAtlas == null || !mGlyphAtlas.matches(textSize, mTextColor)) {
+                mGlyphAtlas = new GlyphAtlas(textSize, mTextColor);
+            }
+            if (mGlyphAtlas.canDraw(mTextChars, length)) {
+                int textY = height / 2 + mGlyphAtlas.getTextHeight(mTextChars, length) / 2;
+                mGlyphAtlas.draw(canvas, mTextChars, length, textX, textY);
+                return;
+            }
+        }
+
+        final Rect bounds = mTextBounds;
+        textPaint.getTextBounds(mTextChars, 0, length, bounds);
         int textY = height / 2 + bounds.height() / 2;
 
-        textPaint.setColor(Color.argb(127, 0, 0, 0));
-        canvas.drawText(text, textX + 2, textY + 2, textPaint);
+        textPaint.setColor(SHADOW_COLOR);
+        canvas.drawText(mTextChars, 0, length, textX + SHADOW_OFFSET, textY + SHADOW_OFFSET, textPaint);
 
         textPaint.setColor(mTextColor);
-        canvas.drawText(text, textX, textY, textPaint);
+        canvas.drawText(mTextChars, 0, length, textX, textY, textPaint);
+    }
 
-        mDrawable.draw(canvas);
+    /**
+     * Works out the sweep angle of each slice into {@link #mSweeps}. Slices in the same
+     * proportions get the same angles, whatever their counts.
+     */
+    private void computeSweeps() {
+        if (mSweeps.length < mSliceCount) {
+            mSweeps = new float[mSliceCounts.length];
+        }
+        float total = totalSliceCount();
+        for (int i = 0; i < mSliceCount; i++) {
+            mSweeps[i] = (mSliceCounts[i] / total) * 360;
+        }
+    }
 
-        return mDrawable;
+    /**
+     * Formats the number with digit grouping into {@link #mTextChars}.
+     *
+     * @return Length of the formatted number
+     */
+    private int formatNumber() {
+        mText.setLength(0);
+        mNumberFormat.format(mNumber, mText, mFieldPosition);
+        final int length = mText.length();
+        if (length > mTextChars.length) {
+            mTextChars = new char[length];
+        }
+        mText.getChars(0, length, mTextChars, 0);
+        return length;
     }
 
     private void drawDisc(Canvas canvas) {
         final int width = canvas.getWidth();
         final int height = canvas.getHeight();
 
-        Paint circlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        circlePaint.setColor(mColor);
-        canvas.drawCircle(width / 2, height / 2, width / 2, circlePaint);
+        mFillPaint.setColor(mColor);
+        canvas.drawCircle(width / 2, height / 2, width / 2, mFillPaint);
     }
 
     private void drawPie(Canvas canvas) {
@@ -199,12 +350,10 @@ public class NotificationIconFactory {
 
         // Draw slices starting from 12 o'clock
         float startAngle = -90;
-        float total = totalSliceCount();
-        for (Slice slice : mSlices) {
-            Paint slicePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-            slicePaint.setColor(slice.color);
-            float sweepAngle = (slice.count / total) * 360;
-            canvas.drawArc(0, 0, width, height, startAngle, sweepAngle, true, slicePaint);
+        for (int i = 0; i < mSliceCount; i++) {
+            mFillPaint.setColor(mSliceColors[i]);
+            float sweepAngle = mSweeps[i];
+            canvas.drawArc(0, 0, width, height, startAngle, sweepAngle, true, mFillPaint);
             startAngle += sweepAngle;
         }
     }
@@ -215,9 +364,8 @@ public class NotificationIconFactory {
         final int radius = width / 3;
 
         drawPie(canvas);
-        Paint circlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        circlePaint.setColor(mColor);
-        canvas.drawCircle(width / 2, height / 2, radius, circlePaint);
+        mFillPaint.setColor(mColor);
+        canvas.drawCircle(width / 2, height / 2, radius, mFillPaint);
     }
 
     /**
@@ -226,17 +374,361 @@ public class NotificationIconFactory {
      * @return Rendered bitmap
      */
     public Bitmap build() {
-        BitmapDrawable drawable = draw();
-        return drawable.getBitmap();
+        if (mCache == null) {
+            BitmapDrawable drawable = draw();
+            return drawable.getBitmap();
+        }
+
+        mProbe.set(this);
+        Bitmap bitmap = mCache.get(mProbe);
+        if (bitmap == null) {
+            if (mCanvas == null) {
+                mCanvas = new Canvas();
+            }
+            computeSweeps();
+            final Bitmap base = buildBase();
+            bitmap = mCache.obtain(mWidth, mHeight);
+            mCanvas.setBitmap(bitmap);
+            mCanvas.drawBitmap(base, 0, 0, null);
+            drawNumber(mCanvas, mWidth, mHeight);
+            mCanvas.setBitmap(null);
+            mCache.put(mCache.copyKey(mProbe), bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gets the base layer of the icon from the cache, drawing it if necessary. Expects the sweep
+     * angles to have been computed.
+     *
+     * @return Bitmap of the circle without the number
+     */
+    private Bitmap buildBase() {
+        mBaseProbe.set(this);
+        Bitmap base = mCache.getBase(mBaseProbe);
+        if (base == null) {
+            base = mCache.obtain(mWidth, mHeight);
+            mCanvas.setBitmap(base);
+            drawBase(mCanvas);
+            mCanvas.setBitmap(null);
+            mCache.putBase(mBaseProbe.copy(), base);
+        }
+        return base;
+    }
+
+    /**
+     * Identifies a rendered icon by everything that affects its pixels. Keys are filled in
+     * place for lookups, so a key must be copied before it's stored in the cache.
+     */
+    private static final class Key {
+        Style style;
+        int width;
+        int height;
+        int color;
+        int textColor;
+        int number;
+        boolean glyphAtlas;
+        int[] slices = new int[0]; // alternating count, color
+        int hashCode;
+
+        void set(NotificationIconFactory factory) {
+            style = factory.mStyle;
+            width = factory.mWidth;
+            height = factory.mHeight;
+            color = factory.mColor;
+            textColor = factory.mTextColor;
+            number = factory.mNumber;
+            glyphAtlas = factory.mGlyphAtlasEnabled;
+
+            final int sliceCount = factory.mSliceCount;
+            if (slices.length != sliceCount * 2) {
+                slices = new int[sliceCount * 2];
+            }
+            for (int i = 0; i < sliceCount; i++) {
+                slices[i * 2] = factory.mSliceCounts[i];
+                slices[i * 2 + 1] = factory.mSliceColors[i];
+            }
+            hashCode = computeHashCode();
+        }
+
+        /**
+         * Copies this key into another, reusing its slice array if it's the right length.
+         */
+        void copyTo(Key key) {
+            key.style = style;
+            key.width = width;
+            key.height = height;
+            key.color = color;
+            key.textColor = textColor;
+            key.number = number;
+            key.glyphAtlas = glyphAtlas;
+            if (key.slices.length != slices.length) {
+                key.slices = slices.clone();
+            } else {
+                System.arraycopy(slices, 0, key.slices, 0, slices.length);
+            }
+            key.hashCode = hashCode;
+        }
+
+        private int computeHashCode() {
+            int result = style != null ? style.hashCode() : 0;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + color;
+            result = 31 * result + textColor;
+            result = 31 * result + number;
+            result = 31 * result + (glyphAtlas ? 1 : 0);
+            result = 31 * result + Arrays.hashCode(slices);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hashCode == other.hashCode
+                    && style == other.style
+                    && width == other.width
+                    && height == other.height
+                    && color == other.color
+                    && textColor == other.textColor
+                    && number == other.number
+                    && glyphAtlas == other.glyphAtlas
+                    && Arrays.equals(slices, other.slices);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
     }
 
-    private static class Slice {
-        int count;
+    /**
+     * Identifies the base layer of an icon by everything that affects its pixels. Counts are
+     * reduced to sweep angles, so slices in the same proportions share a base layer.
+     */
+    private static final class BaseKey {
+        Style style;
+        int width;
+        int height;
         int color;
+        int[] slices = new int[0]; // alternating sweep angle bits, color
+        int hashCode;
+
+        void set(NotificationIconFactory factory) {
+            style = factory.mStyle;
+            width = factory.mWidth;
+            height = factory.mHeight;
+            // Pies are drawn entirely from their slices, and discs without them
+            color = style != Style.PIE ? factory.mColor : 0;
+
+            final int sliceCount = style != Style.DISC ? factory.mSliceCount : 0;
+            if (slices.length != sliceCount * 2) {
+                slices = new int[sliceCount * 2];
+            }
+            for (int i = 0; i < sliceCount; i++) {
+                slices[i * 2] = Float.floatToIntBits(factory.mSweeps[i]);
+                slices[i * 2 + 1] = factory.mSliceColors[i];
+            }
+
+            int result = style != null ? style.hashCode() : 0;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + color;
+            result = 31 * result + Arrays.hashCode(slices);
+            hashCode = result;
+        }
+
+        BaseKey copy() {
+            final BaseKey key = new BaseKey();
+            key.style = style;
+            key.width = width;
+            key.height = height;
+            key.color = color;
+            key.slices = slices.clone();
+            key.hashCode = hashCode;
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BaseKey)) {
+                return false;
+            }
+            BaseKey other = (BaseKey) o;
+            return hashCode == other.hashCode
+                    && style == other.style
+                    && width == other.width
+                    && height == other.height
+                    && color == other.color
+                    && Arrays.equals(slices, other.slices);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * LRU cache of rendered icons and of their base layers, each bounded by their total size in
+     * bytes. Bitmaps evicted from the cache are kept in a small pool and redrawn in place rather
+     * than allocating a new bitmap, and so are the keys of evicted icons.
+     */
+    public static class Cache {
+        private final LruCache<Key, Bitmap> mBitmaps;
+        private final LruCache<BaseKey, Bitmap> mBases;
+        private final ArrayList<Bitmap> mPool = new ArrayList<Bitmap>();
+        private final ArrayList<Key> mSpareKeys = new ArrayList<Key>();
+        private final int mPoolSize;
+
+        /**
+         * Creates a new cache.
+         *
+         * @param maxBytes     Maximum total size of cached icons, in bytes
+         * @param maxBaseBytes Maximum total size of cached base layers, in bytes
+         * @param poolSize     Maximum number of evicted bitmaps to keep for reuse
+         */
+        public Cache(int maxBytes, int maxBaseBytes, int poolSize) {
+            mPoolSize = poolSize;
+            mBitmaps = new LruCache<Key, Bitmap>(maxBytes) {
+                @Override
+                protected int sizeOf(Key key, Bitmap bitmap) {
+                    return bitmap.getAllocationByteCount();
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue) {
+                    if (evicted) {
+                        recycle(oldValue);
+                        recycleKey(key);
+                    }
+                }
+            };
+            mBases = new LruCache<BaseKey, Bitmap>(maxBaseBytes) {
+                @Override
+                protected int sizeOf(BaseKey key, Bitmap bitmap) {
+                    return bitmap.getAllocationByteCount();
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, BaseKey key, Bitmap oldValue, Bitmap newValue) {
+                    if (evicted) {
+                        recycle(oldValue);
+                    }
+                }
+            };
+        }
+
+        Bitmap get(Key key) {
+            return mBitmaps.get(key);
+        }
+
+        void put(Key key, Bitmap bitmap) {
+            mBitmaps.put(key, bitmap);
+        }
+
+        Bitmap getBase(BaseKey key) {
+            return mBases.get(key);
+        }
+
+        void putBase(BaseKey key, Bitmap bitmap) {
+            mBases.put(key, bitmap);
+        }
+
+        /**
+         * Gets a blank bitmap of the given size, reusing a pooled one where possible.
+         */
+        synchronized Bitmap obtain(int width, int height) {
+            for (int i = 0; i < mPool.size(); i++) {
+                final Bitmap bitmap = mPool.get(i);
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                    mPool.remove(i);
+                    bitmap.eraseColor(Color.TRANSPARENT);
+                    return bitmap;
+                }
+            }
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        private synchronized void recycle(Bitmap bitmap) {
+            if (mPool.size() >= mPoolSize) {
+                mPool.remove(0);
+            }
+            mPool.add(bitmap);
+        }
+
+        /**
+         * Copies a lookup key so it can be stored, reusing the key of an evicted icon if any.
+         */
+        synchronized Key copyKey(Key probe) {
+            final int spares = mSpareKeys.size();
+            final Key key = spares > 0 ? mSpareKeys.remove(spares - 1) : new Key();
+            probe.copyTo(key);
+            return key;
+        }
+
+        private synchronized void recycleKey(Key key) {
+            if (mSpareKeys.size() < mPoolSize) {
+                mSpareKeys.add(key);
+            }
+        }
+
+        /**
+         * Empties the cache and the pool of reusable bitmaps.
+         */
+        public synchronized void clear() {
+            mBitmaps.evictAll();
+            mBases.evictAll();
+            mPool.clear();
+            mSpareKeys.clear();
+        }
+
+        /**
+         * @return Total size of cached icons, base layers and pooled bitmaps, in bytes.
+         */
+        public synchronized long getByteCount() {
+            long bytes = mBitmaps.size() + mBases.size();
+            for (Bitmap bitmap : mPool) {
+                bytes += bitmap.getAllocationByteCount();
+            }
+            return bytes;
+        }
+
+        /**
+         * @return Number of icons that were found in the cache.
+         */
+        public int getHitCount() {
+            return mBitmaps.hitCount();
+        }
+
+        /**
+         * @return Number of icons that had to be rendered.
+         */
+        public int getMissCount() {
+            return mBitmaps.missCount();
+        }
+
+        /**
+         * @return Number of icons drawn over a cached base layer.
+         */
+        public int getBaseHitCount() {
+            return mBases.hitCount();
+        }
 
-        public Slice(int count, int color) {
-            this.count = count;
-            this.color = color;
+        /**
+         * @return Number of icons whose base layer had to be drawn as well as the number.
+         */
+        public int getBaseMissCount() {
+            return mBases.missCount();
         }
     }
 }
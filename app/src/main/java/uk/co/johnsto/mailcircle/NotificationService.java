@@ -1,5 +1,6 @@
 package uk.co.johnsto.mailcircle;
 
+import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -8,40 +9,463 @@ import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
 import android.util.Log;
-import android.util.Pair;
 
 import com.google.android.gm.contentprovider.GmailContract;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NotificationService extends Service implements Consts {
     public final static String
             ACTION_INIT = "uk.co.johnsto.mailcircle.ACTION_INIT",
-            ACTION_CHECK = "uk.co.johnsto.mailcircle.ACTION_CHECK";
+            ACTION_CHECK = "uk.co.johnsto.mailcircle.ACTION_CHECK",
+            ACTION_JOB_CHECK = "uk.co.johnsto.mailcircle.ACTION_JOB_CHECK";
+    // Accounts whose labels triggered a job check, absent if all accounts should be checked
+    public final static String EXTRA_ACCOUNTS = "uk.co.johnsto.mailcircle.EXTRA_ACCOUNTS";
     private static final int NOTIFICATION_ID = 2222;
-    private ContentObserver mObserver;
+    // Used instead while settings are overridden, so the user's notification is left alone
+    private static final int OVERRIDE_NOTIFICATION_ID = 2223;
+    private static final String STATE_FILE = "notification_state";
+    static final String TRACE_FILE = "check_trace";
+    // Number of checks kept in the event trace
+    private static final int TRACE_CAPACITY = 1024;
+    private static final String GMAIL_PACKAGE = "com.google.android.gm";
+
+    // Wait for triggers to go quiet for this long (ms) before checking...
+    private static final long CHECK_QUIET_WINDOW = 500;
+    // ...but never delay a check by more than this (ms) after the first trigger.
+    private static final long CHECK_MAX_LATENCY = 2000;
+
+    // Number of rendered icons and of their base layers (without the number) to keep around,
+    // and of evicted bitmaps to reuse
+    static final int ICON_CACHE_SIZE = 6;
+    static final int ICON_BASE_CACHE_SIZE = 4;
+    static final int ICON_POOL_SIZE = 2;
+
+    // Number of accounts to query at once, how long (ms) to wait for each query, and how long (ms)
+    // to wait for all of them to answer
+    private static final int QUERY_PARALLELISM = 4;
+    private static final long QUERY_TIMEOUT = 3000;
+    private static final long QUERY_DEADLINE = 5000;
+    // Delay (ms) before retrying accounts that missed the deadline
+    private static final long QUERY_RETRY_DELAY = 15000;
+
+    // How long (ms) dump() waits for the worker to report the state it owns
+    private static final long DUMP_TIMEOUT = 1000;
+
+    // Instance of the service alive in this process, if any, which receivers hand events to
+    private static volatile NotificationService sInstance;
+    private static volatile CheckListener sCheckListener;
+    // Number of mail events handed straight to a running service, and sent with startService
+    private static final AtomicInteger sFastDeliveries = new AtomicInteger();
+    private static final AtomicInteger sSlowDeliveries = new AtomicInteger();
+
+    // Observer registration for each watched account, only touched on the worker thread
+    private final Map<String, Registration> mObservers = new HashMap<String, Registration>();
+    private HandlerThread mWorker;
+    private Handler mWorkerHandler;
+    private CheckScheduler mScheduler;
+    private NotificationIconFactory.Cache mIconCache;
+    private GmailClient mClient;
+    private LabelResolver mLabels;
+    private UnreadFetcher mFetcher;
+    // Null while settings are overridden, so stand-in counts are never stored or restored
+    private NotificationStateStore mStateStore;
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    // Everything cached by the service, trimmed on the worker thread under memory pressure
+    private final CacheRegistry mCaches = new CacheRegistry();
+    private EventTrace mTrace;
+    // Duration (us) of each stage of the running check, only touched on the worker thread
+    private final int[] mStageMicros = new int[PipelineMetrics.Stage.values().length];
+    private Settings mSettings;
+    private NotificationManager mNotificationManager;
+    private int mNotificationId;
+
+    // Whether checks are run by jobs, so the service stops once it has caught up, and the ID of
+    // the last start request
+    private volatile boolean mJobMode;
+    private volatile int mLastStartId;
+
+    // Set once the service is destroyed, after which work still queued on the worker is skipped
+    private volatile boolean mDestroyed;
+
+    // Resources for the current configuration, only touched on the worker thread
+    private int mIconWidth;
+    private int mIconHeight;
+    private String mNotifTitle;
+    private NotificationIconFactory mIconFactory;
+    private NumberFormat mNumberFormat;
+
+    // Buffers reused by each check so that an unchanged check allocates as little as possible,
+    // only touched on the worker thread
+    private final ArrayList<String> mStale = new ArrayList<String>();
+    private int[] mSortedIndex = new int[4]; // account index, most unread first
+    private int[] mSortedUnread = new int[4]; // unread count of that account
+    private int[] mResults = new int[4]; // unread count fetched for each stale account
+    private final StringBuffer mContentText = new StringBuffer();
+    private final FieldPosition mFieldPosition = new FieldPosition(0);
+
+    // Gmail launch intent and the content intent made from it for each account, only touched on
+    // the worker thread and dropped whenever the Gmail package changes
+    private Intent mLaunchIntent;
+    private final Map<String, ContentIntent> mContentIntents = new HashMap<String, ContentIntent>();
+
+    // Number of cross-process calls made by the running check, and by the last complete one,
+    // including observer registrations as well as queries and posts
+    private int mIpcCount;
+    private int mLastCheckIpcCount = -1;
+
+    // Last known unread count of each enabled account, only touched on the worker thread
+    private final Map<String, Integer> mUnread = new HashMap<String, Integer>();
+    // Number of times each account's count couldn't be fetched and the last known one was used
+    private final Map<String, Integer> mFallbacks = new HashMap<String, Integer>();
+    // Settings the maps above were last pruned against, only touched on the worker thread
+    private Settings.Snapshot mPrunedSettings;
+    // Number of retries waiting to be triggered, only touched on the worker thread
+    private int mPendingRetries;
+
+    // What's currently on display, or null if unknown (e.g. after a restart)
+    private NotificationState mShownState;
+    private int mPostCount;
+    private int mSkipCount;
+
+    // When the service was created, how long (ms) it took to first show the notification, and
+    // whether that was from the stored state rather than live data
+    private long mCreateTime;
+    private long mFirstShowDelay = -1;
+    private boolean mFirstShowRestored;
 
     public NotificationService() {
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mCreateTime = SystemClock.elapsedRealtime();
+
+        // Queries and rendering happen on a background thread to keep the main looper free
+        mWorker = new HandlerThread("MailCircleCheck", Process.THREAD_PRIORITY_BACKGROUND);
+        mWorker.start();
+        mWorkerHandler = new Handler(mWorker.getLooper());
+        mFetcher = new UnreadFetcher(QUERY_PARALLELISM, QUERY_TIMEOUT, QUERY_DEADLINE);
+        mSettings = new Settings(this);
+        mClient = new GmailClient(getContentResolver(), mSettings.getGmailAuthority());
+        mLabels = new LabelResolver(mClient);
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        // Settings overrides (e.g. a benchmark) only take effect when the service starts, so
+        // the service keeps out of the user's notification, state and trace until it restarts
+        final boolean overridden = Settings.isOverridden();
+        mNotificationId = overridden ? OVERRIDE_NOTIFICATION_ID : NOTIFICATION_ID;
+
+        loadResources();
+        final int iconBytes = 4 * mIconWidth * mIconHeight;
+        mIconCache = new NotificationIconFactory.Cache(ICON_CACHE_SIZE * iconBytes,
+                ICON_BASE_CACHE_SIZE * iconBytes, ICON_POOL_SIZE);
+
+        registerCaches();
+
+        if (!overridden) {
+            try {
+                mTrace = EventTrace.open(new File(getFilesDir(), TRACE_FILE), TRACE_CAPACITY);
+            } catch (IOException ex) {
+                Log.w(TAG, "Couldn't open event trace", ex);
+            }
+        }
+
+        mScheduler = new CheckScheduler(mWorkerHandler, CHECK_QUIET_WINDOW, CHECK_MAX_LATENCY,
+                new CheckScheduler.Task() {
+                    @Override
+                    public void run(Set<String> accountNames) {
+                        if (mDestroyed) {
+                            return;
+                        }
+                        final int queries = mClient.getQueryCount();
+                        final int posts = mPostCount;
+                        final int sources = mMetrics.takeTriggerSources();
+                        final long start = System.nanoTime();
+                        mIpcCount = 0;
+                        Arrays.fill(mStageMicros, 0);
+                        check(accountNames);
+                        mLastCheckIpcCount = mIpcCount + mClient.getQueryCount() - queries;
+                        mMetrics.countCheck();
+                        recordStage(PipelineMetrics.Stage.CHECK, start);
+                        if (mTrace != null) {
+                            mTrace.append(sources, mStageMicros,
+                                    mShownState != null ? mShownState.getTotal() : -1,
+                                    mPostCount != posts);
+                        }
+
+                        final CheckListener listener = sCheckListener;
+                        if (listener != null) {
+                            listener.onChecked(System.nanoTime() - start, mPostCount != posts);
+                        }
+
+                        if (mJobMode && mPendingRetries == 0) {
+                            // Read the start ID before looking for pending checks, as a new start
+                            // request triggers a check before updating it. Receivers are locked
+                            // out meanwhile, and stop handing over events once the service has
+                            // decided to stop, so none can be dropped in between.
+                            final int startId;
+                            boolean stop = false;
+                            synchronized (NotificationService.class) {
+                                startId = mLastStartId;
+                                if (!mScheduler.isPending()) {
+                                    sInstance = null;
+                                    stop = true;
+                                }
+                            }
+                            if (stop) {
+                                finishJob(startId);
+                            }
+                        }
+                    }
+                });
+
+        // Show the last known state straight away, while live counts are fetched
+        if (!overridden) {
+            mStateStore = new NotificationStateStore(new File(getFilesDir(), STATE_FILE));
+        }
+        if (mStateStore != null && mSettings.isStateRestoreEnabled()) {
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    restore();
+                }
+            });
+        }
+
+        mSettings.registerListener(mSettingsListener);
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
+
+        sInstance = this;
+    }
+
+    @Override
+    public void onDestroy() {
+        synchronized (NotificationService.class) {
+            sInstance = null;
+            mDestroyed = true;
+        }
+        unregisterReceiver(mPackageReceiver);
+        mSettings.unregisterListener(mSettingsListener);
+        mScheduler.cancel();
+        if (mNotificationId != NOTIFICATION_ID) {
+            // Stand-in counts shouldn't outlive the overrides
+            mNotificationManager.cancel(mNotificationId);
+        }
+        // Tear down on the worker, once whatever it's running or has queued is done with the
+        // fetcher, client and cache
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.cancel();
+                unobserveAll();
+                mFetcher.shutdown();
+                mClient.release();
+                mIconCache.clear();
+            }
+        });
+        mWorker.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         super.onStartCommand(intent, flags, startId);
-        observe();
-        check();
-        return START_STICKY;
+        final String action = intent != null ? intent.getAction() : null;
+        mJobMode = mSettings.isJobModeEnabled();
+        if (mJobMode) {
+            // The system watches labels for us, so observers would only keep the service alive
+            mWorkerHandler.post(mUnobserveTask);
+        } else {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                CheckJobService.cancel(this);
+            }
+            mWorkerHandler.post(mObserveTask);
+        }
+
+        if (ACTION_JOB_CHECK.equals(action)) {
+            mMetrics.countTrigger(PipelineMetrics.Source.JOB);
+            final String[] accountNames = intent.getStringArrayExtra(EXTRA_ACCOUNTS);
+            if (accountNames != null) {
+                mScheduler.trigger(Arrays.asList(accountNames));
+            } else {
+                mScheduler.trigger();
+            }
+        } else {
+            mMetrics.countTrigger(ACTION_CHECK.equals(action)
+                    ? PipelineMetrics.Source.MAIL : PipelineMetrics.Source.INIT);
+            mScheduler.trigger();
+        }
+        mLastStartId = startId;
+        return mJobMode ? START_NOT_STICKY : START_STICKY;
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                loadResources();
+                // Redraw at the new size/in the new language
+                mShownState = null;
+                mMetrics.countTrigger(PipelineMetrics.Source.CONFIG);
+                mScheduler.trigger(Collections.<String>emptySet());
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        final CacheRegistry.Tier tier = CacheRegistry.getTier(level);
+        if (tier != null) {
+            trimLater(tier);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        trimLater(CacheRegistry.Tier.STATE);
+    }
+
+    /**
+     * Drops the caches at and below the given tier on the worker thread, which owns them.
+     *
+     * @param tier Highest tier to drop
+     */
+    private void trimLater(final CacheRegistry.Tier tier) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long released = mCaches.trim(tier);
+                Log.i(TAG, "Trimmed caches to " + tier + ", released about " + released + " bytes");
+            }
+        });
+    }
+
+    /**
+     * Registers every cache the service holds, from the cheapest to rebuild to the dearest.
+     */
+    private void registerCaches() {
+        mCaches.register("icons", CacheRegistry.Tier.BITMAPS, new CacheRegistry.Cache() {
+            @Override
+            public long getByteCount() {
+                return mIconCache.getByteCount();
+            }
+
+            @Override
+            public void clear() {
+                mIconCache.clear();
+            }
+        });
+        mCaches.register("glyphs", CacheRegistry.Tier.BITMAPS, new CacheRegistry.Cache() {
+            @Override
+            public long getByteCount() {
+                final NotificationIconFactory factory = mIconFactory;
+                return factory != null ? factory.getByteCount() : 0;
+            }
+
+            @Override
+            public void clear() {
+                // Made again, with a fresh glyph atlas, by the next render
+                mIconFactory = null;
+            }
+        });
+        mCaches.register("labels", CacheRegistry.Tier.METADATA, new CacheRegistry.Cache() {
+            @Override
+            public long getByteCount() {
+                return mLabels.getByteCount();
+            }
+
+            @Override
+            public void clear() {
+                mLabels.clear();
+            }
+        });
+        mCaches.register("intents", CacheRegistry.Tier.METADATA, new CacheRegistry.Cache() {
+            @Override
+            public long getByteCount() {
+                // Each pending intent is only a token for one held by the system
+                return 64 * mContentIntents.size();
+            }
+
+            @Override
+            public void clear() {
+                mLaunchIntent = null;
+                mContentIntents.clear();
+            }
+        });
+        mCaches.register("settings", CacheRegistry.Tier.METADATA, new CacheRegistry.Cache() {
+            @Override
+            public long getByteCount() {
+                return Settings.getSnapshotByteCount();
+            }
+
+            @Override
+            public void clear() {
+                Settings.clearSnapshot();
+            }
+        });
+        mCaches.register("unread", CacheRegistry.Tier.STATE, new CacheRegistry.Cache() {
+            @Override
+            public long getByteCount() {
+                // Map entries and boxed counts; account names are shared with the settings
+                return 48 * mUnread.size() + 4 * mStale.size() + 2 * mContentText.capacity();
+            }
+
+            @Override
+            public void clear() {
+                // Accounts without a known count are all re-queried by the next check
+                mUnread.clear();
+                mStale.clear();
+                mStale.trimToSize();
+                mContentText.setLength(0);
+                mContentText.trimToSize();
+            }
+        });
     }
 
     @Override
@@ -49,137 +473,850 @@ public class NotificationService extends Service implements Consts {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Metrics:");
+        mMetrics.dump(writer, "  ");
+        writer.println("Scheduler:");
+        writer.println("  triggers=" + mScheduler.getTriggerCount()
+                + " coalesced=" + mScheduler.getCoalescedCount()
+                + " runs=" + mScheduler.getRunCount()
+                + " abandoned=" + mScheduler.getAbandonedCount()
+                + " pending=" + mScheduler.isPending()
+                + " mode=" + (mJobMode ? Settings.TRIGGER_MODE_JOBS : Settings.TRIGGER_MODE_RESIDENT));
+        writer.println("Notification:");
+        writer.println("  posts=" + mPostCount + " unchanged=" + mSkipCount
+                + " firstShowDelay=" + mFirstShowDelay + "ms"
+                + (mFirstShowRestored ? " (restored)" : ""));
+        writer.println("Icons:");
+        writer.println("  hits=" + mIconCache.getHitCount()
+                + " misses=" + mIconCache.getMissCount()
+                + " baseHits=" + mIconCache.getBaseHitCount()
+                + " baseMisses=" + mIconCache.getBaseMissCount());
+        writer.println("Provider:");
+        writer.println("  queries=" + mClient.getQueryCount()
+                + " acquires=" + mClient.getAcquireCount()
+                + " reacquires=" + mClient.getReacquireCount()
+                + " lastCheckIpc=" + mLastCheckIpcCount);
+        writer.print(dumpWorkerState());
+        writer.println("Receiver:");
+        writer.println("  fast=" + sFastDeliveries.get() + " slow=" + sSlowDeliveries.get());
+    }
+
+    /**
+     * Prints the state owned by the worker thread on that thread, so that it's read between
+     * checks rather than while one is changing it.
+     *
+     * @return The printed state, or a note saying the worker didn't answer in time
+     */
+    private String dumpWorkerState() {
+        final StringWriter out = new StringWriter();
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean posted = mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final PrintWriter writer = new PrintWriter(out);
+                writer.println("Fallbacks:");
+                writer.println("  " + mFallbacks);
+                writer.println("Caches:");
+                mCaches.dump(writer, "  ");
+                writer.flush();
+                done.countDown();
+            }
+        });
+        try {
+            if (posted && done.await(DUMP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return out.toString();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return "Worker busy, fallbacks and caches not shown\n";
+    }
+
+    /**
+     * @return True if the service is running in this process.
+     */
+    public static boolean isRunning() {
+        return sInstance != null;
+    }
+
     /**
-     * Checks for any unread emails and hides/shows a notification as appropriate.
+     * Hands a mail event straight to the running service's scheduler, where it's folded into
+     * any pending check, saving a round trip through the activity manager.
+     *
+     * @return True if the event was delivered, false if the service isn't running and has to
+     * be started instead.
+     */
+    private static boolean deliverMailEvent() {
+        synchronized (NotificationService.class) {
+            final NotificationService service = sInstance;
+            if (service == null) {
+                return false;
+            }
+            service.mMetrics.countTrigger(PipelineMetrics.Source.MAIL);
+            service.mScheduler.trigger();
+            return true;
+        }
+    }
+
+    /**
+     * @return Number of mail events handed straight to the running service.
+     */
+    public static int getFastDeliveryCount() {
+        return sFastDeliveries.get();
+    }
+
+    /**
+     * @return Number of mail events that had to start the service.
+     */
+    public static int getSlowDeliveryCount() {
+        return sSlowDeliveries.get();
+    }
+
+    /**
+     * Sets a listener to be told about every check the service runs, e.g. by a benchmark.
+     *
+     * @param listener Listener, or null to remove it
+     */
+    public static void setCheckListener(CheckListener listener) {
+        sCheckListener = listener;
+    }
+
+    /**
+     * Receives the outcome of each check.
+     */
+    public interface CheckListener {
+        /**
+         * Called on the worker thread once a check has finished.
+         *
+         * @param durationNanos How long the check took
+         * @param posted        True if the notification was posted or cancelled as a result
+         */
+        void onChecked(long durationNanos, boolean posted);
+    }
+
+    /**
+     * Resolves the resources used to build the notification, which only change along with the
+     * configuration.
+     */
+    private void loadResources() {
+        final Resources res = getResources();
+        mIconWidth = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        mIconHeight = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        mNotifTitle = res.getString(R.string.notif_title);
+        mNumberFormat = NumberFormat.getIntegerInstance();
+        mIconFactory = null;
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data != null && GMAIL_PACKAGE.equals(data.getSchemeSpecificPart())) {
+                mWorkerHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Launch activity may have moved, or Gmail may have gone altogether
+                        mLaunchIntent = null;
+                        mContentIntents.clear();
+                    }
+                });
+            }
+        }
+    };
+
+    private final Settings.ChangeListener mSettingsListener = new Settings.ChangeListener() {
+        @Override
+        public void onSettingsChanged(final Set<String> keys) {
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applySettingsChanges(keys);
+                }
+            });
+        }
+    };
+
+    /**
+     * Does the least work needed to bring the notification in line with changed settings.
+     * Appearance changes only need a redraw, whereas a label change re-watches and re-queries
+     * just that account.
+     *
+     * @param keys Keys of the preferences that changed
+     */
+    private void applySettingsChanges(Set<String> keys) {
+        if (mDestroyed) {
+            return;
+        }
+        boolean redraw = false;
+        final Set<String> changedAccounts = new HashSet<String>();
+        for (String key : keys) {
+            switch (Settings.classify(key)) {
+                case ENABLE:
+                case STYLE:
+                case ACCOUNT_ALIAS:
+                case ACCOUNT_COLOR:
+                    redraw = true;
+                    break;
+                case RENDERING:
+                    // The shown state doesn't say how its icon was drawn
+                    mShownState = null;
+                    redraw = true;
+                    break;
+                case ACCOUNT_LABEL:
+                    final String accountName = Settings.getKeyAccount(key);
+                    final Settings.Snapshot settings = mSettings.getSnapshot();
+                    final int index = settings.indexOf(accountName);
+                    if (index >= 0) {
+                        observeAccount(accountName, settings.getLabel(index));
+                        changedAccounts.add(accountName);
+                    }
+                    break;
+                case ACCOUNTS:
+                    changedAccounts.addAll(observe());
+                    redraw = true;
+                    break;
+                case MODE:
+                    // Start again in the new mode
+                    final Intent intent = new Intent(this, NotificationService.class);
+                    intent.setAction(ACTION_INIT);
+                    startService(intent);
+                    break;
+            }
+        }
+
+        if (redraw || !changedAccounts.isEmpty()) {
+            mMetrics.countTrigger(PipelineMetrics.Source.SETTINGS);
+            mScheduler.trigger(changedAccounts);
+        }
+    }
+
+    // Settings of the running check, read by the fetcher's threads
+    private volatile Settings.Snapshot mQuerySettings;
+
+    private final UnreadFetcher.Query mQuery = new UnreadFetcher.Query() {
+        @Override
+        public int getUnreadCount(String accountName, CancellationSignal signal) {
+            // Get unread count for the selected account label
+            final Settings.Snapshot settings = mQuerySettings;
+            String label = settings.getLabel(settings.indexOf(accountName));
+            final long start = System.nanoTime();
+            try {
+                return NotificationService.this.getUnreadCount(accountName, label, signal);
+            } finally {
+                mMetrics.record(PipelineMetrics.Stage.QUERY, start);
+            }
+        }
+    };
+
+    /**
+     * Checks all accounts for unread emails and hides/shows a notification as appropriate.
      */
     public void check() {
-        final NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        check(null);
+    }
+
+    /**
+     * Checks for any unread emails and hides/shows a notification as appropriate. Runs on the
+     * worker thread, and gives up early if a newer check has been requested in the meantime.
+     *
+     * @param changedAccounts Accounts to re-query, or null to re-query all of them. Other
+     *                        accounts keep their last known unread count.
+     */
+    public void check(Set<String> changedAccounts) {
+        final long settingsStart = System.nanoTime();
+        final Settings.Snapshot settings = mSettings.getSnapshot();
+        recordStage(PipelineMetrics.Stage.SETTINGS, settingsStart);
 
         // Check if user actually wants a notification
-        boolean enabled = prefs.getBoolean("enable_notification", true);
-        if (!enabled) {
+        if (!settings.isNotificationEnabled()) {
             // Notification isn't enabled right now
-            nm.cancel(NOTIFICATION_ID);
+            show(NotificationState.EMPTY);
             return;
         }
 
-        final Settings settings = new Settings(this);
-        String[] accountNames = settings.getAccountNames();
-
-        if (accountNames == null || accountNames.length == 0) {
+        final int accountCount = settings.getAccountCount();
+        if (accountCount == 0) {
             // No accounts, therefore definitely no email
-            nm.cancel(NOTIFICATION_ID);
+            show(NotificationState.EMPTY);
             return;
         }
 
-        final Resources res = getResources();
-        int notifWidth = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
-        int notifHeight = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
-        int defaultColor = res.getColor(R.color.primary);
+        // Forget accounts that are no longer enabled, which can only change along with the
+        // snapshot, and find those that need re-querying
+        if (settings != mPrunedSettings) {
+            Iterator<String> known = mUnread.keySet().iterator();
+            while (known.hasNext()) {
+                if (settings.indexOf(known.next()) < 0) {
+                    known.remove();
+                }
+            }
+            known = mFallbacks.keySet().iterator();
+            while (known.hasNext()) {
+                if (settings.indexOf(known.next()) < 0) {
+                    known.remove();
+                }
+            }
+            mPrunedSettings = settings;
+        }
+        final ArrayList<String> stale = mStale;
+        stale.clear();
+        for (int i = 0; i < accountCount; i++) {
+            final String accountName = settings.getAccountName(i);
+            if (changedAccounts == null || changedAccounts.contains(accountName)
+                    || !mUnread.containsKey(accountName)) {
+                stale.add(accountName);
+            }
+        }
 
-        Bitmap bitmap = Bitmap.createBitmap(notifWidth, notifHeight, Bitmap.Config.ARGB_8888);
-        ArrayList<Pair<String, Integer>> counts = new ArrayList<Pair<String, Integer>>();
+        // Check unread count for each changed account, in parallel
+        final long queryStart = System.nanoTime();
+        // A redraw has nothing to fetch, so it skips the fetcher altogether
+        final int fetched = stale.size();
+        if (fetched > 0) {
+            if (mResults.length < fetched) {
+                mResults = new int[accountCount];
+            }
+            mQuerySettings = settings;
+            try {
+                mFetcher.fetch(stale, mQuery, mResults);
+            } catch (InterruptedException ex) {
+                // Service is shutting down
+                return;
+            }
+        }
+        // Each query is timed separately, so the trace just gets the time spent waiting for all
+        mStageMicros[PipelineMetrics.Stage.QUERY.ordinal()] =
+                (int) ((System.nanoTime() - queryStart) / 1000);
 
-        // Check unread count for each account
-        int totalUnread = 0;
-        for (String accountName : accountNames) {
-            // Get unread count for the selected account label
-            String label = settings.getAccountLabel(accountName,
-                    GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_ALL_MAIL);
-            int unread = getUnreadCount(accountName, label);
+        final int[] results = mResults;
+        for (int i = 0; i < fetched; i++) {
+            final String accountName = stale.get(i);
+            if (results[i] != UnreadFetcher.MISSED) {
+                // Only box counts that have changed
+                final Integer known = mUnread.get(accountName);
+                if (known == null || known != results[i]) {
+                    mUnread.put(accountName, results[i]);
+                }
+                // The query has resolved the label, so the observer can move onto it
+                observeAccount(accountName, settings.getLabel(settings.indexOf(accountName)));
+            } else {
+                // Keep showing the last known count, and refresh this account in the background
+                mMetrics.countFailure();
+                Integer fallbacks = mFallbacks.get(accountName);
+                fallbacks = fallbacks == null ? 1 : fallbacks + 1;
+                mFallbacks.put(accountName, fallbacks);
+                Log.w(TAG, "Using last known unread count for " + accountName
+                        + " (" + fallbacks + " times so far)");
+                retryLater(accountName);
+            }
+        }
+
+        if (mScheduler.isSuperseded()) {
+            // A newer check is pending, so these counts may already be stale
+            return;
+        }
+
+        // Merge latest counts for all accounts, sorted by unread #, greatest first (then by
+        // account order, so the order is stable)
+        final long sortStart = System.nanoTime();
+        if (mSortedIndex.length < accountCount) {
+            mSortedIndex = Arrays.copyOf(mSortedIndex, accountCount);
+            mSortedUnread = Arrays.copyOf(mSortedUnread, accountCount);
+        }
+        int count = 0;
+        for (int i = 0; i < accountCount; i++) {
+            final Integer value = mUnread.get(settings.getAccountName(i));
+            final int unread = value != null ? value : 0;
             if (unread > 0) {
-                totalUnread += unread;
-                counts.add(new Pair<String, Integer>(accountName, unread));
+                int j = count++;
+                while (j > 0 && mSortedUnread[j - 1] < unread) {
+                    mSortedIndex[j] = mSortedIndex[j - 1];
+                    mSortedUnread[j] = mSortedUnread[j - 1];
+                    j--;
+                }
+                mSortedIndex[j] = i;
+                mSortedUnread[j] = unread;
             }
         }
+        recordStage(PipelineMetrics.Stage.SORT, sortStart);
 
-        if (totalUnread == 0) {
+        if (count == 0) {
             // Remove notification if there's no unread email in an account
-            nm.cancel(NOTIFICATION_ID);
+            show(NotificationState.EMPTY);
             return;
         }
 
-        // Sort accounts by unread #, greatest first
-        Collections.sort(counts, new Comparator<Pair<String, Integer>>() {
+        // Tapping the notification opens the account with the most unread emails
+        final String majorLabel = settings.getLabel(mSortedIndex[0]);
+        final NotificationIconFactory.Style style = settings.getStyle();
+
+        if (isShown(settings, count, style, majorLabel)) {
+            // Nothing changed, so don't bother building a new state
+            mSkipCount++;
+            return;
+        }
+
+        ArrayList<NotificationState.Entry> entries = new ArrayList<NotificationState.Entry>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = mSortedIndex[i];
+            entries.add(new NotificationState.Entry(settings.getAccountName(index),
+                    mSortedUnread[i], settings.getColor(index), settings.getAlias(index)));
+        }
+        show(new NotificationState(entries, style, majorLabel));
+    }
+
+    /**
+     * Determines whether the sorted counts are already on display.
+     *
+     * @param settings   Settings the counts were merged with
+     * @param count      Number of accounts with unread email
+     * @param style      Icon style
+     * @param majorLabel Label opened when the notification is tapped
+     * @return True if the shown state has the same entries, style and label.
+     */
+    private boolean isShown(Settings.Snapshot settings, int count,
+                            NotificationIconFactory.Style style, String majorLabel) {
+        final NotificationState shown = mShownState;
+        if (shown == null || shown.getEntryCount() != count || shown.getStyle() != style
+                || !(majorLabel == null
+                ? shown.getTargetLabel() == null : majorLabel.equals(shown.getTargetLabel()))) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            final NotificationState.Entry entry = shown.getEntry(i);
+            final int index = mSortedIndex[i];
+            final String alias = settings.getAlias(index);
+            if (entry.unread != mSortedUnread[i]
+                    || entry.color != settings.getColor(index)
+                    || !entry.account.equals(settings.getAccountName(index))
+                    || !(alias == null ? entry.alias == null : alias.equals(entry.alias))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records how long a stage of the running check took, for both the metrics and the trace.
+     *
+     * @param stage      The stage
+     * @param startNanos Value of {@link System#nanoTime()} when the stage started
+     */
+    private void recordStage(PipelineMetrics.Stage stage, long startNanos) {
+        final long nanos = mMetrics.record(stage, startNanos);
+        mStageMicros[stage.ordinal()] += (int) (nanos / 1000);
+    }
+
+    /**
+     * Schedules a check of the given account after a delay.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     */
+    private void retryLater(final String accountName) {
+        mPendingRetries++;
+        mWorkerHandler.postDelayed(new Runnable() {
             @Override
-            public int compare(Pair<String, Integer> left, Pair<String, Integer> right) {
-                return right.second - left.second;
+            public void run() {
+                mPendingRetries--;
+                mMetrics.countTrigger(PipelineMetrics.Source.RETRY);
+                mScheduler.trigger(accountName);
             }
-        });
+        }, QUERY_RETRY_DELAY);
+    }
+
+    /**
+     * Shows the notification from the stored state of a previous run, and seeds the unread counts
+     * with it. The counts are reconciled with live data by the first check.
+     * <p/>
+     * If the notification may still be on display, e.g. when a job restarts the service, it's
+     * only seeded as the shown state, so that unchanged checks still skip posting it.
+     */
+    private void restore() {
+        if (mDestroyed || mShownState != null || !mSettings.getSnapshot().isNotificationEnabled()) {
+            // Already showing live data, or nothing should be shown at all
+            return;
+        }
+
+        final NotificationState state = mStateStore.read();
+        if (state == null) {
+            return;
+        }
+        for (int i = 0; i < state.getEntryCount(); i++) {
+            final NotificationState.Entry entry = state.getEntry(i);
+            if (!mUnread.containsKey(entry.account)) {
+                mUnread.put(entry.account, entry.unread);
+            }
+        }
+        if (isNotificationShowing()) {
+            mShownState = state;
+            return;
+        }
+        show(state, true);
+    }
+
+    /**
+     * @return True if the notification from a previous run may still be on display
+     */
+    private boolean isNotificationShowing() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final StatusBarNotification[] active = mNotificationManager.getActiveNotifications();
+            mIpcCount++;
+            for (StatusBarNotification notification : active) {
+                if (notification.getId() == mNotificationId && notification.getTag() == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // No way to tell, but a job restarts the service with the notification still up, while
+        // the resident service mostly starts after a reboot or update, which clear it
+        return mSettings.isJobModeEnabled();
+    }
+
+    /**
+     * Posts or cancels the notification to match the given state, unless it's already showing.
+     *
+     * @param state State to show
+     */
+    private void show(NotificationState state) {
+        show(state, false);
+    }
+
+    /**
+     * Posts or cancels the notification to match the given state, unless it's already showing.
+     *
+     * @param state    State to show
+     * @param restored True if the state was restored from storage, rather than freshly computed
+     */
+    private void show(NotificationState state, boolean restored) {
+        if (mDestroyed) {
+            // Too late; a check was still running when the service was destroyed
+            return;
+        }
+        if (state.equals(mShownState)) {
+            mSkipCount++;
+            return;
+        }
+
+        if (state.isEmpty()) {
+            final long notifyStart = System.nanoTime();
+            mNotificationManager.cancel(mNotificationId);
+            recordStage(PipelineMetrics.Stage.NOTIFY, notifyStart);
+            mIpcCount++;
+            onShown(state, restored);
+            return;
+        }
+
+        final int totalUnread = state.getTotal();
 
         // Populate icon and notification content
-        NotificationIconFactory factory = new NotificationIconFactory(res, bitmap);
-        StringBuilder contentInfo = new StringBuilder();
-        String contentSep = "";
-        for (Pair<String, Integer> count : counts) {
-            final String accountName = count.first;
-            final int unread = count.second;
-            final int color = settings.getAccountColor(accountName, defaultColor);
-            final String alias = settings.getAccountAlias(accountName);
-            factory.addSlice(count.second, color);
-            contentInfo.append(contentSep);
-            contentInfo.append(String.format("%s (%,d)", alias, unread));
-            contentSep = ", ";
+        if (mIconFactory == null) {
+            mIconFactory = new NotificationIconFactory(getResources(), mIconWidth, mIconHeight,
+                    mIconCache);
+        }
+        final NotificationIconFactory factory = mIconFactory.reset()
+                .setGlyphAtlasEnabled(mSettings.getSnapshot().isGlyphAtlasEnabled());
+        final StringBuffer contentInfo = mContentText;
+        contentInfo.setLength(0);
+        for (int i = 0; i < state.getEntryCount(); i++) {
+            final NotificationState.Entry entry = state.getEntry(i);
+            factory.addSlice(entry.unread, entry.color);
+            if (i > 0) {
+                contentInfo.append(", ");
+            }
+            contentInfo.append(entry.alias).append(" (");
+            mNumberFormat.format(entry.unread, contentInfo, mFieldPosition);
+            contentInfo.append(')');
         }
 
         // Get details about account with the most unread emails
-        final String majorAccount = counts.get(0).first;
-        final int majorColor = settings.getAccountColor(majorAccount, defaultColor);
-        final String majorLabel = settings.getAccountLabel(majorAccount,
-                GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_ALL_MAIL);
-
-        // Make intent to GMail app that opens the account with the highest number of unread emails
-        // FIXME: this probably won't work on some devices
-        Intent intent = getPackageManager().getLaunchIntentForPackage("com.google.android.gm");
-        intent.putExtra("account", majorAccount);
-        intent.putExtra("label", majorLabel);
-        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, 0);
+        final NotificationState.Entry major = state.getEntry(0);
+
+        // Open the account with the highest number of unread emails
+        final PendingIntent pendingIntent = getContentIntent(major.account, state.getTargetLabel());
 
         // Set notification color to that of the account with the highest number of unread emails
-        factory.setColor(majorColor);
+        factory.setColor(major.color);
         factory.setNumber(totalUnread);
 
         // Set notification style
-        String styleName = prefs.getString("notification_style", NotificationIconFactory.DEFAULT_STYLE.name);
-        factory.setStyle(styleName);
+        factory.setStyle(state.getStyle());
 
         //String pluralString = getResources().getQuantityString(R.plurals.unread_emails, totalUnread, totalUnread);
 
+        final long renderStart = System.nanoTime();
+        final Bitmap icon = factory.build();
+        recordStage(PipelineMetrics.Stage.RENDER, renderStart);
+        if (!restored && mScheduler.isSuperseded()) {
+            // Don't let a stale result overwrite the one about to be computed
+            return;
+        }
+
         // Create notification
         Notification notif = new Notification.Builder(this)
                 .setNumber(totalUnread)
                 .setSmallIcon(R.drawable.ic_notif_mail, totalUnread)
-                .setLargeIcon(factory.build())
-                .setColor(majorColor)
+                .setLargeIcon(icon)
+                .setColor(major.color)
                 .setContentIntent(pendingIntent)
-                .setContentTitle(res.getString(R.string.notif_title))
+                .setContentTitle(mNotifTitle)
                 .setContentText(contentInfo.toString())
                 .build();
 
         // Display the notification
-        nm.notify(NOTIFICATION_ID, notif);
+        final long notifyStart = System.nanoTime();
+        mNotificationManager.notify(mNotificationId, notif);
+        recordStage(PipelineMetrics.Stage.NOTIFY, notifyStart);
+        mIpcCount++;
+        onShown(state, restored);
+    }
+
+    /**
+     * Gets the intent that opens the given label of an account in Gmail, creating it if it hasn't
+     * been used since the Gmail package last changed.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     * @param label       Canonical label name
+     * @return The intent, or null if Gmail can't be launched
+     */
+    private PendingIntent getContentIntent(String accountName, String label) {
+        ContentIntent contentIntent = mContentIntents.get(accountName);
+        if (contentIntent != null && contentIntent.label.equals(label)) {
+            return contentIntent.intent;
+        }
+
+        if (mLaunchIntent == null) {
+            // FIXME: this probably won't work on some devices
+            mLaunchIntent = getPackageManager().getLaunchIntentForPackage(GMAIL_PACKAGE);
+            mIpcCount++;
+            if (mLaunchIntent == null) {
+                return null;
+            }
+        }
+
+        // Intents only differ in their extras, so each account needs its own request code, which
+        // is kept when its label changes
+        final int requestCode = contentIntent != null
+                ? contentIntent.requestCode : mContentIntents.size();
+        Intent intent = new Intent(mLaunchIntent);
+        intent.putExtra("account", accountName);
+        intent.putExtra("label", label);
+        final PendingIntent pendingIntent = PendingIntent.getActivity(this, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        mIpcCount++;
+        mContentIntents.put(accountName, new ContentIntent(label, requestCode, pendingIntent));
+        return pendingIntent;
     }
 
+    /**
+     * Content intent of an account, with the label it opens and its request code.
+     */
+    private static class ContentIntent {
+        final String label;
+        final int requestCode;
+        final PendingIntent intent;
+
+        ContentIntent(String label, int requestCode, PendingIntent intent) {
+            this.label = label;
+            this.requestCode = requestCode;
+            this.intent = intent;
+        }
+    }
 
     /**
-     * Start watching content for changes.
+     * Records that the given state is now on display.
+     *
+     * @param state    State that was shown
+     * @param restored True if the state was restored from storage
      */
-    private void observe() {
-        final Settings settings = new Settings(this);
-        final ContentResolver resolver = getContentResolver();
-        final String[] accounts = settings.getAccountNames();
+    private void onShown(NotificationState state, boolean restored) {
+        mShownState = state;
+        mPostCount++;
+        mMetrics.countPost();
+
+        if (mFirstShowDelay < 0) {
+            mFirstShowDelay = SystemClock.elapsedRealtime() - mCreateTime;
+            mFirstShowRestored = restored;
+            Log.i(TAG, "First notification " + mFirstShowDelay + "ms after start ("
+                    + (restored ? "restored" : "live") + ")");
+        }
+
+        if (!restored && mStateStore != null) {
+            mStateStore.write(state);
+        }
+    }
+
+    /**
+     * @param accountName The account name, e.g. example@gmail.com
+     * @return Number of times the account's unread count couldn't be fetched in time, and its
+     * last known count was shown instead.
+     */
+    public int getFallbackCount(String accountName) {
+        Integer fallbacks = mFallbacks.get(accountName);
+        return fallbacks != null ? fallbacks : 0;
+    }
 
-        if (accounts == null) {
-            Log.w(TAG, "No accounts defined.");
+    /**
+     * @return Time (ms) from the service starting to the notification first being shown (or
+     * cancelled), or -1 if that hasn't happened yet.
+     */
+    public long getFirstShowDelay() {
+        return mFirstShowDelay;
+    }
+
+    /**
+     * @return True if the notification was first shown from the state stored by a previous run.
+     */
+    public boolean isFirstShowRestored() {
+        return mFirstShowRestored;
+    }
+
+    /**
+     * @return Number of cross-process calls made by the last check, including observers it
+     * registered or removed, or -1 if none has run yet.
+     */
+    public int getLastCheckIpcCount() {
+        return mLastCheckIpcCount;
+    }
+
+    /**
+     * @return Number of times the notification has been posted or cancelled.
+     */
+    public int getPostCount() {
+        return mPostCount;
+    }
+
+    /**
+     * @return Number of posts skipped because the notification was already up to date.
+     */
+    public int getSkipCount() {
+        return mSkipCount;
+    }
+
+    private final Runnable mObserveTask = new Runnable() {
+        @Override
+        public void run() {
+            observe();
+        }
+    };
+
+    private final Runnable mUnobserveTask = new Runnable() {
+        @Override
+        public void run() {
+            unobserveAll();
+        }
+    };
+
+    /**
+     * Hands over to a job once the checks requested so far are done: lets the running job
+     * finish, schedules the next one to run when a watched label changes, and stops the service.
+     * Runs on the worker thread.
+     *
+     * @param startId ID of the last start request when the checks finished
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    private void finishJob(int startId) {
+        // Scheduling a job stops it if it's still running, so it has to be finished first
+        CheckJobService.onCheckFinished();
+
+        final Settings.Snapshot settings = mSettings.getSnapshot();
+        final List<Uri> labelUris = new ArrayList<Uri>();
+        final List<Uri> treeUris = new ArrayList<Uri>();
+        for (int i = 0; i < settings.getAccountCount(); i++) {
+            final String accountName = settings.getAccountName(i);
+            // The check that just finished has resolved every label it could
+            final Uri uri = mLabels.peekLabelUri(accountName, settings.getLabel(i));
+            if (uri != null) {
+                labelUris.add(uri);
+            } else {
+                // Label isn't resolved (or doesn't exist yet), so watch all labels until it is
+                treeUris.add(mClient.getLabelsUri(accountName));
+            }
+        }
+        CheckJobService.schedule(this, labelUris, treeUris, CHECK_QUIET_WINDOW, CHECK_MAX_LATENCY);
+
+        // Keeps running if another start request has arrived in the meantime, in which case a
+        // check is already pending and receivers can hand events over again
+        if (!stopSelfResult(startId)) {
+            synchronized (NotificationService.class) {
+                if (!mDestroyed) {
+                    sInstance = this;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start watching content for changes. Runs on the worker thread, as finding the URI of each
+     * label may query the provider.
+     * <p/>
+     * Only differences from what's already registered are applied: observers of accounts that
+     * are no longer enabled are removed, newly enabled accounts are registered, and existing
+     * registrations that already watch the right URI are left attached.
+     *
+     * @return The accounts that weren't being watched before.
+     */
+    private Set<String> observe() {
+        if (mJobMode || mDestroyed) {
+            return Collections.emptySet();
+        }
+        final Settings.Snapshot settings = mSettings.getSnapshot();
+
+        // Stop watching accounts that are no longer enabled
+        final Iterator<Map.Entry<String, Registration>> it = mObservers.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Registration> entry = it.next();
+            if (settings.indexOf(entry.getKey()) < 0) {
+                getContentResolver().unregisterContentObserver(entry.getValue().observer);
+                mIpcCount++;
+                it.remove();
+            }
+        }
+
+        // Watch the label the user has selected on each enabled account
+        final Set<String> added = new HashSet<String>();
+        for (int i = 0; i < settings.getAccountCount(); i++) {
+            final String accountName = settings.getAccountName(i);
+            if (!mObservers.containsKey(accountName)) {
+                added.add(accountName);
+            }
+            observeAccount(accountName, settings.getLabel(i));
+        }
+        return added;
+    }
+
+    /**
+     * Watches the given label of an account. Does nothing if the account's observer is already
+     * watching the label; otherwise the new observer is registered before the old one is removed,
+     * so no change goes unnoticed in between.
+     * <p/>
+     * Never queries the provider, so a slow provider can't hold up the worker outside of a
+     * check's deadline. Until a check has resolved the label, all of the account's labels are
+     * watched instead; the check then calls this again to narrow the observer down.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     * @param label       Canonical label name
+     */
+    private void observeAccount(final String accountName, String label) {
+        if (mJobMode) {
             return;
         }
+        Uri uri = mLabels.peekLabelUri(accountName, label);
+        boolean descendants = false;
+        if (uri == null) {
+            // Label isn't resolved (or doesn't exist yet), so watch all labels until it is
+            uri = mClient.getLabelsUri(accountName);
+            descendants = true;
+        }
 
-        if (mObserver != null) {
-            getContentResolver().unregisterContentObserver(mObserver);
+        final Registration existing = mObservers.get(accountName);
+        if (existing != null && existing.uri.equals(uri)) {
+            return;
         }
 
-        mObserver = new ContentObserver(new Handler()) {
+        final ContentObserver observer = new ContentObserver(mWorkerHandler) {
             @Override
             public void onChange(boolean selfChange) {
                 onChange(selfChange, null);
@@ -187,14 +1324,43 @@ public class NotificationService extends Service implements Consts {
 
             @Override
             public void onChange(boolean selfChange, Uri uri) {
-                check();
+                // Only re-query the account that changed
+                mMetrics.countTrigger(PipelineMetrics.Source.OBSERVER);
+                mScheduler.trigger(accountName);
             }
         };
 
-        // Register observer for each account and label the user has selected.
-        for (String account : accounts) {
-            Uri uri = GmailContract.Labels.getLabelsUri(account);
-            resolver.registerContentObserver(uri, true, mObserver);
+        final ContentResolver resolver = getContentResolver();
+        resolver.registerContentObserver(uri, descendants, observer);
+        mIpcCount++;
+        mObservers.put(accountName, new Registration(uri, observer));
+        if (existing != null) {
+            resolver.unregisterContentObserver(existing.observer);
+            mIpcCount++;
+        }
+    }
+
+    /**
+     * Stops watching all accounts.
+     */
+    private void unobserveAll() {
+        for (Registration registration : mObservers.values()) {
+            getContentResolver().unregisterContentObserver(registration.observer);
+            mIpcCount++;
+        }
+        mObservers.clear();
+    }
+
+    /**
+     * A content observer and the URI it's registered on.
+     */
+    private static class Registration {
+        final Uri uri;
+        final ContentObserver observer;
+
+        Registration(Uri uri, ContentObserver observer) {
+            this.uri = uri;
+            this.observer = observer;
         }
     }
 
@@ -216,6 +1382,11 @@ public class NotificationService extends Service implements Consts {
     public static class MailReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
+            if (deliverMailEvent()) {
+                sFastDeliveries.incrementAndGet();
+                return;
+            }
+            sSlowDeliveries.incrementAndGet();
             final Intent serviceIntent = new Intent(context, NotificationService.class);
             serviceIntent.setAction(ACTION_CHECK);
             context.startService(serviceIntent);
@@ -230,24 +1401,73 @@ public class NotificationService extends Service implements Consts {
      * @return Number of unread emails for the account label
      */
     public int getUnreadCount(String accountName, String label) {
-        Cursor cursor = getContentResolver().query(
-                GmailContract.Labels.getLabelsUri(accountName),
-                UnreadQuery.PROJECTION, null, null, null
-        );
-        try {
-            if (cursor == null || cursor.isAfterLast()) {
-                return 0;
+        return getUnreadCount(accountName, label, null);
+    }
+
+    /**
+     * Returns the number of unread emails on the given account and label.
+     *
+     * @param accountName Name of the account to read from
+     * @param label       Canonical label name
+     * @param signal      Signal to cancel the query, may be null
+     * @return Number of unread emails for the account label
+     * @throws android.os.OperationCanceledException if the signal was cancelled
+     */
+    public int getUnreadCount(String accountName, String label, CancellationSignal signal) {
+        Uri uri = mLabels.getLabelUri(accountName, label, signal);
+        if (uri == null) {
+            return 0;
+        }
+
+        int unread = queryUnreadCount(uri, label, signal);
+        if (unread < 0) {
+            // Label has been renamed or deleted since its URI was resolved, so look it up again
+            mLabels.invalidate(accountName);
+            Uri newUri = mLabels.getLabelUri(accountName, label, signal);
+            if (!uri.equals(newUri)) {
+                // Observer is still watching the old URI
+                reobserveLater(accountName, label);
             }
+            if (newUri != null) {
+                unread = queryUnreadCount(newUri, label, signal);
+            }
+        }
+        return Math.max(unread, 0);
+    }
 
-            int unread = 0;
-            while (cursor.moveToNext()) {
-                String canonicalName = cursor.getString(UnreadQuery.CANONICAL_NAME);
-                int unreadInLabel = cursor.getInt(UnreadQuery.NUM_UNREAD_CONVERSATIONS);
-                if (label.equals(canonicalName)) {
-                    unread = Math.max(unread, unreadInLabel);
-                }
+    /**
+     * Re-registers the observer for an account on the worker thread.
+     *
+     * @param accountName The account name, e.g. example@gmail.com
+     * @param label       Canonical label name
+     */
+    private void reobserveLater(final String accountName, final String label) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                observeAccount(accountName, label);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of unread emails in a single label.
+     *
+     * @param labelUri URI of the label
+     * @param label    Canonical label name the URI is expected to refer to
+     * @param signal   Signal to cancel the query, may be null
+     * @return Number of unread emails, or -1 if the URI no longer refers to the label
+     */
+    private int queryUnreadCount(Uri labelUri, String label, CancellationSignal signal) {
+        Cursor cursor = mClient.query(
+                labelUri, UnreadQuery.PROJECTION, null, null, null, signal
+        );
+        try {
+            if (cursor == null || !cursor.moveToFirst()
+                    || !label.equals(cursor.getString(UnreadQuery.CANONICAL_NAME))) {
+                return -1;
             }
-            return unread;
+            return cursor.getInt(UnreadQuery.NUM_UNREAD_CONVERSATIONS);
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -0,0 +1,156 @@
+package uk.co.johnsto.mailcircle;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable description of everything that appears in the unread notification. Two states that
+ * are equal produce identical notifications, so there's no need to re-post one that's already
+ * showing.
+ */
+public final class NotificationState {
+    /**
+     * State in which no notification is shown.
+     */
+    public static final NotificationState EMPTY = new NotificationState(
+            new Entry[0], NotificationIconFactory.DEFAULT_STYLE, null);
+
+    private final Entry[] mEntries;
+    private final int mTotal;
+    private final NotificationIconFactory.Style mStyle;
+    private final String mTargetLabel;
+    private final int mHashCode;
+
+    /**
+     * Creates a new state.
+     *
+     * @param entries     Accounts with unread email, in display order (most unread first)
+     * @param style       Icon style
+     * @param targetLabel Canonical label opened when the notification is tapped
+     */
+    public NotificationState(List<Entry> entries, NotificationIconFactory.Style style,
+                             String targetLabel) {
+        this(entries.toArray(new Entry[entries.size()]), style, targetLabel);
+    }
+
+    private NotificationState(Entry[] entries, NotificationIconFactory.Style style,
+                              String targetLabel) {
+        int total = 0;
+        for (Entry entry : entries) {
+            total += entry.unread;
+        }
+        mEntries = entries;
+        mTotal = total;
+        mStyle = style;
+        mTargetLabel = targetLabel;
+        mHashCode = computeHashCode();
+    }
+
+    /**
+     * @return True if there's nothing to show.
+     */
+    public boolean isEmpty() {
+        return mTotal == 0;
+    }
+
+    /**
+     * @return Number of accounts with unread email.
+     */
+    public int getEntryCount() {
+        return mEntries.length;
+    }
+
+    /**
+     * @param index Entry index, 0 being the account with the most unread email
+     * @return The entry
+     */
+    public Entry getEntry(int index) {
+        return mEntries[index];
+    }
+
+    /**
+     * @return Total unread count across all accounts.
+     */
+    public int getTotal() {
+        return mTotal;
+    }
+
+    public NotificationIconFactory.Style getStyle() {
+        return mStyle;
+    }
+
+    public String getTargetLabel() {
+        return mTargetLabel;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NotificationState)) {
+            return false;
+        }
+        NotificationState other = (NotificationState) o;
+        return mHashCode == other.mHashCode
+                && mTotal == other.mTotal
+                && mStyle == other.mStyle
+                && (mTargetLabel == null
+                ? other.mTargetLabel == null : mTargetLabel.equals(other.mTargetLabel))
+                && Arrays.equals(mEntries, other.mEntries);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    private int computeHashCode() {
+        int result = Arrays.hashCode(mEntries);
+        result = 31 * result + mTotal;
+        result = 31 * result + (mStyle != null ? mStyle.hashCode() : 0);
+        result = 31 * result + (mTargetLabel != null ? mTargetLabel.hashCode() : 0);
+        return result;
+    }
+
+    /**
+     * Unread details for a single account.
+     */
+    public static final class Entry {
+        public final String account;
+        public final int unread;
+        public final int color;
+        public final String alias;
+
+        public Entry(String account, int unread, int color, String alias) {
+            this.account = account;
+            this.unread = unread;
+            this.color = color;
+            this.alias = alias;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return unread == other.unread
+                    && color == other.color
+                    && account.equals(other.account)
+                    && (alias == null ? other.alias == null : alias.equals(other.alias));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = account.hashCode();
+            result = 31 * result + unread;
+            result = 31 * result + color;
+            result = 31 * result + (alias != null ? alias.hashCode() : 0);
+            return result;
+        }
+    }
+}
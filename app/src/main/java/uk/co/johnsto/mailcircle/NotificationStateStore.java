@@ -0,0 +1,113 @@
+package uk.co.johnsto.mailcircle;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Persists the last notification state in a small binary file, so that the notification can be
+ * shown again straight away when the service restarts, before any account has been queried.
+ */
+public class NotificationStateStore implements Consts {
+    private static final int MAGIC = 0x4d43534e; // "MCSN"
+    private static final int VERSION = 1;
+
+    private final AtomicFile mFile;
+
+    /**
+     * @param file File to store the state in
+     */
+    public NotificationStateStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Reads the stored state.
+     *
+     * @return The stored state, or null if there isn't one or it couldn't be read.
+     */
+    public NotificationState read() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return null;
+            }
+
+            final NotificationIconFactory.Style style = NotificationIconFactory.Style.fromName(in.readUTF());
+            final String targetLabel = in.readBoolean() ? in.readUTF() : null;
+            final int count = in.readInt();
+            final ArrayList<NotificationState.Entry> entries = new ArrayList<NotificationState.Entry>(count);
+            for (int i = 0; i < count; i++) {
+                final String account = in.readUTF();
+                final int unread = in.readInt();
+                final int color = in.readInt();
+                final String alias = in.readBoolean() ? in.readUTF() : null;
+                entries.add(new NotificationState.Entry(account, unread, color, alias));
+            }
+            return new NotificationState(entries,
+                    style != null ? style : NotificationIconFactory.DEFAULT_STYLE, targetLabel);
+        } catch (FileNotFoundException ex) {
+            return null;
+        } catch (IOException ex) {
+            Log.w(TAG, "Couldn't read notification state", ex);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the stored state.
+     *
+     * @param state State to store
+     */
+    public void write(NotificationState state) {
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(state.getStyle().name);
+            writeNullableUTF(out, state.getTargetLabel());
+            out.writeInt(state.getEntryCount());
+            for (int i = 0; i < state.getEntryCount(); i++) {
+                final NotificationState.Entry entry = state.getEntry(i);
+                out.writeUTF(entry.account);
+                out.writeInt(entry.unread);
+                out.writeInt(entry.color);
+                writeNullableUTF(out, entry.alias);
+            }
+            out.flush();
+            mFile.finishWrite(stream);
+        } catch (IOException ex) {
+            Log.w(TAG, "Couldn't write notification state", ex);
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+        }
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package uk.co.johnsto.mailcircle;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the stages of a check. Recording is lock-free and
+ * allocates nothing, so it can be done from any thread on every check.
+ */
+public class PipelineMetrics {
+    /**
+     * Where a request for a check came from.
+     */
+    public static enum Source {
+        OBSERVER, // a watched label changed
+        MAIL, // MailReceiver
+        INIT, // InitReceiver, or the settings screen starting the service
+        SETTINGS, // settings changed while running
+        RETRY, // an account missed the deadline last time
+        CONFIG, // configuration changed
+        JOB // CheckJobService, after a watched label changed
+    }
+
+    /**
+     * Stages of a check that are timed.
+     */
+    public static enum Stage {
+        CHECK, // the whole check
+        SETTINGS, // loading the settings snapshot
+        QUERY, // querying one account's unread count
+        SORT, // merging and sorting counts
+        RENDER, // building the icon
+        NOTIFY // posting or cancelling the notification
+    }
+
+    private final AtomicLongArray mTriggers = new AtomicLongArray(Source.values().length);
+    private final AtomicInteger mPendingSources = new AtomicInteger();
+    private final Histogram[] mStages = new Histogram[Stage.values().length];
+    private final AtomicLong mChecks = new AtomicLong();
+    private final AtomicLong mPosts = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+
+    public PipelineMetrics() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new Histogram();
+        }
+    }
+
+    public void countTrigger(Source source) {
+        mTriggers.incrementAndGet(source.ordinal());
+
+        int sources;
+        do {
+            sources = mPendingSources.get();
+        } while (!mPendingSources.compareAndSet(sources, sources | (1 << source.ordinal())));
+    }
+
+    /**
+     * Gets the sources of all triggers since the last call, e.g. to find out what prompted a
+     * check.
+     *
+     * @return Bit mask of {@link Source} ordinals
+     */
+    public int takeTriggerSources() {
+        return mPendingSources.getAndSet(0);
+    }
+
+    public void countCheck() {
+        mChecks.incrementAndGet();
+    }
+
+    public void countPost() {
+        mPosts.incrementAndGet();
+    }
+
+    /**
+     * Counts an account whose unread count couldn't be fetched.
+     */
+    public void countFailure() {
+        mFailures.incrementAndGet();
+    }
+
+    /**
+     * Records how long a stage took.
+     *
+     * @param stage      The stage
+     * @param startNanos Value of {@link System#nanoTime()} when the stage started
+     * @return How long (ns) the stage took
+     */
+    public long record(Stage stage, long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        mStages[stage.ordinal()].record(nanos);
+        return nanos;
+    }
+
+    /**
+     * Prints all counters and histograms.
+     *
+     * @param writer Writer to print to
+     * @param prefix Indent for each line
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        writer.print(prefix);
+        writer.print("checks=");
+        writer.print(mChecks.get());
+        writer.print(" posts=");
+        writer.print(mPosts.get());
+        writer.print(" failures=");
+        writer.println(mFailures.get());
+
+        writer.print(prefix);
+        writer.print("triggers:");
+        for (Source source : Source.values()) {
+            writer.print(' ');
+            writer.print(source.name().toLowerCase(Locale.US));
+            writer.print('=');
+            writer.print(mTriggers.get(source.ordinal()));
+        }
+        writer.println();
+
+        for (Stage stage : Stage.values()) {
+            writer.print(prefix);
+            writer.print(stage.name().toLowerCase(Locale.US));
+            writer.print(": ");
+            mStages[stage.ordinal()].dump(writer);
+            writer.println();
+        }
+    }
+
+    /**
+     * Histogram of durations in power-of-two buckets of microseconds, from under 1us up to
+     * about 2 minutes.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 28;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * @param nanos Duration to record
+         */
+        public void record(long nanos) {
+            final long micros = Math.max(0, nanos / 1000);
+            // Bucket n holds durations from 2^(n-1) up to 2^n microseconds
+            final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotal.addAndGet(nanos);
+
+            long max;
+            while (nanos > (max = mMax.get())) {
+                if (mMax.compareAndSet(max, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket it falls in.
+         *
+         * @param fraction Percentile, e.g. 0.99
+         * @return Estimated duration in microseconds, or 0 if nothing has been recorded
+         */
+        public long getPercentileMicros(double fraction) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        void dump(PrintWriter writer) {
+            final long count = mCount.get();
+            writer.print("count=");
+            writer.print(count);
+            if (count == 0) {
+                return;
+            }
+            writer.print(" mean=");
+            writer.print(mTotal.get() / count / 1000);
+            writer.print("us p50<=");
+            writer.print(getPercentileMicros(0.5));
+            writer.print("us p90<=");
+            writer.print(getPercentileMicros(0.9));
+            writer.print("us p99<=");
+            writer.print(getPercentileMicros(0.99));
+            writer.print("us max=");
+            writer.print(mMax.get() / 1000);
+            writer.print("us");
+        }
+    }
+}
@@ -2,8 +2,15 @@ package uk.co.johnsto.mailcircle;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 
+import com.google.android.gm.contentprovider.GmailContract;
+
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -15,11 +22,219 @@ public class Settings {
     public static final String KEY_ACCOUNT_ALIAS = "alias";
     public static final String KEY_ACCOUNT_COLOR = "color";
     public static final String KEY_ACCOUNT_LABEL = "label";
+    public static final String KEY_ENABLE_NOTIFICATION = "enable_notification";
+    public static final String KEY_NOTIFICATION_STYLE = "notification_style";
+    public static final String KEY_DEBUG_RESTORE_STATE = "debug_restore_state";
+    public static final String KEY_DEBUG_GLYPH_ATLAS = "debug_glyph_atlas";
+    public static final String KEY_TRIGGER_MODE = "trigger_mode";
+
+    // Values of KEY_TRIGGER_MODE: keep the service running to observe labels, or let the system
+    // start it with a job when they change
+    public static final String TRIGGER_MODE_RESIDENT = "resident";
+    public static final String TRIGGER_MODE_JOBS = "jobs";
+
+    // In-memory stand-ins for the provider authority and enabled accounts, see setOverrides()
+    private static volatile String sAuthorityOverride;
+    private static volatile String[] sAccountsOverride;
+
+    // Snapshot shared by all instances, dropped whenever a preference it depends on changes
+    private static Snapshot sSnapshot;
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sSnapshotInvalidator =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (isSnapshotKey(key)) {
+                        synchronized (Settings.class) {
+                            sSnapshot = null;
+                        }
+                    }
+                }
+            };
+    private static boolean sInvalidatorRegistered;
 
     private final SharedPreferences mPreferences;
+    private final Resources mResources;
 
     public Settings(Context context) {
         mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mResources = context.getResources();
+    }
+
+    /**
+     * Gets an immutable snapshot of the settings needed to show the notification. The snapshot
+     * is built on first use and kept until one of the preferences it covers changes.
+     *
+     * @return Current settings snapshot
+     */
+    public Snapshot getSnapshot() {
+        synchronized (Settings.class) {
+            if (!sInvalidatorRegistered) {
+                // Preferences only hold a weak reference to the listener, hence the static field
+                mPreferences.registerOnSharedPreferenceChangeListener(sSnapshotInvalidator);
+                sInvalidatorRegistered = true;
+            }
+            if (sSnapshot == null) {
+                sSnapshot = new Snapshot(this);
+            }
+            return sSnapshot;
+        }
+    }
+
+    /**
+     * Drops the cached snapshot, to be rebuilt by the next call to {@link #getSnapshot()}.
+     */
+    public static void clearSnapshot() {
+        synchronized (Settings.class) {
+            sSnapshot = null;
+        }
+    }
+
+    /**
+     * @return Approximate number of bytes held by the cached snapshot.
+     */
+    public static long getSnapshotByteCount() {
+        synchronized (Settings.class) {
+            return sSnapshot != null ? sSnapshot.getByteCount() : 0;
+        }
+    }
+
+    /**
+     * Kinds of settings change, each of which needs different work to bring the notification up
+     * to date.
+     */
+    public static enum Change {
+        ACCOUNTS, // the set of enabled accounts
+        ACCOUNT_ALIAS, // alias of one account
+        ACCOUNT_COLOR, // color of one account
+        ACCOUNT_LABEL, // label watched on one account
+        STYLE, // icon style
+        RENDERING, // how the icon is drawn, without changing what it shows
+        ENABLE, // notification on/off
+        MODE, // how the service is told about new mail
+        OTHER // doesn't affect the notification
+    }
+
+    /**
+     * Classifies a change to the preference with the given key.
+     *
+     * @param key Preference key
+     * @return The kind of change
+     */
+    public static Change classify(String key) {
+        if (key == null) {
+            return Change.OTHER;
+        } else if (key.equals(KEY_ACCOUNTS)) {
+            return Change.ACCOUNTS;
+        } else if (key.equals(KEY_ENABLE_NOTIFICATION)) {
+            return Change.ENABLE;
+        } else if (key.equals(KEY_NOTIFICATION_STYLE)) {
+            return Change.STYLE;
+        } else if (key.startsWith(KEY_ACCOUNT_ALIAS + ":")) {
+            return Change.ACCOUNT_ALIAS;
+        } else if (key.startsWith(KEY_ACCOUNT_COLOR + ":")) {
+            return Change.ACCOUNT_COLOR;
+        } else if (key.startsWith(KEY_ACCOUNT_LABEL + ":")) {
+            return Change.ACCOUNT_LABEL;
+        } else if (key.equals(KEY_TRIGGER_MODE)) {
+            return Change.MODE;
+        } else if (key.equals(KEY_DEBUG_GLYPH_ATLAS)) {
+            return Change.RENDERING;
+        }
+        return Change.OTHER;
+    }
+
+    /**
+     * Gets the account that a per-account preference key refers to, e.g. "color:a@gmail.com".
+     *
+     * @param key Preference key
+     * @return The account name, or null if the key isn't a per-account one.
+     */
+    public static String getKeyAccount(String key) {
+        int sep = key.indexOf(':');
+        return sep >= 0 ? key.substring(sep + 1) : null;
+    }
+
+    /**
+     * Determines if the preference with the given key is covered by {@link Snapshot}.
+     *
+     * @param key Preference key
+     * @return True if a change to the preference invalidates the snapshot.
+     */
+    public static boolean isSnapshotKey(String key) {
+        return key == null || classify(key) != Change.OTHER;
+    }
+
+    /**
+     * @return True if the user wants the unread notification to be shown at all.
+     */
+    public boolean isNotificationEnabled() {
+        return mPreferences.getBoolean(KEY_ENABLE_NOTIFICATION, true);
+    }
+
+    /**
+     * @return True if the service should show the stored notification state when it starts,
+     * rather than waiting for live counts (only ever disabled for debugging).
+     */
+    public boolean isStateRestoreEnabled() {
+        return mPreferences.getBoolean(KEY_DEBUG_RESTORE_STATE, true);
+    }
+
+    /**
+     * @return True if the icon number should be drawn from pre-rendered glyphs.
+     */
+    public boolean isGlyphAtlasEnabled() {
+        return mPreferences.getBoolean(KEY_DEBUG_GLYPH_ATLAS, false);
+    }
+
+    /**
+     * @return True if checks should be run by content-triggered jobs rather than by a resident
+     * service holding content observers. Only possible on Android 7.0 and later.
+     */
+    public boolean isJobModeEnabled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && TRIGGER_MODE_JOBS.equals(
+                mPreferences.getString(KEY_TRIGGER_MODE, TRIGGER_MODE_RESIDENT));
+    }
+
+    /**
+     * @return Authority of the provider to read labels from; Gmail's unless a stand-in has been
+     * set up for testing.
+     */
+    public String getGmailAuthority() {
+        final String authority = sAuthorityOverride;
+        return authority != null ? authority : GmailContract.AUTHORITY;
+    }
+
+    /**
+     * Points the app at a stand-in provider and set of accounts, e.g. for a benchmark. The
+     * override only lives in memory, so the user's own settings are untouched, and come back by
+     * themselves if the process dies. The authority takes effect when the service next starts.
+     *
+     * @param authority    Provider authority, or null for Gmail's
+     * @param accountNames Accounts to enable instead of the user's, or null for the user's
+     */
+    public static void setOverrides(String authority, String[] accountNames) {
+        synchronized (Settings.class) {
+            sAuthorityOverride = authority;
+            sAccountsOverride = accountNames != null ? accountNames.clone() : null;
+            sSnapshot = null;
+        }
+    }
+
+    /**
+     * @return True if a stand-in provider or set of accounts has been set up, see
+     * {@link #setOverrides(String, String[])}.
+     */
+    public static boolean isOverridden() {
+        return sAuthorityOverride != null || sAccountsOverride != null;
+    }
+
+    /**
+     * @return The icon style chosen by the user.
+     */
+    public NotificationIconFactory.Style getNotificationStyle() {
+        NotificationIconFactory.Style style = NotificationIconFactory.Style.fromName(
+                mPreferences.getString(KEY_NOTIFICATION_STYLE, NotificationIconFactory.DEFAULT_STYLE.name));
+        return style != null ? style : NotificationIconFactory.DEFAULT_STYLE;
     }
 
     /**
@@ -28,6 +243,10 @@ public class Settings {
      * @return An array of enabled account names. Empty if no accounts have been chosen.
      */
     public String[] getAccountNames() {
+        final String[] overridden = sAccountsOverride;
+        if (overridden != null) {
+            return overridden.clone();
+        }
         if (!mPreferences.contains(KEY_ACCOUNTS)) {
             return new String[0];
         }
@@ -42,8 +261,7 @@ public class Settings {
      * @return True if the account is enabled.
      */
     public boolean isEnabled(String accountName) {
-        Set<String> accounts = mPreferences.getStringSet(KEY_ACCOUNTS, new HashSet<String>());
-        return accounts.contains(accountName);
+        return getSnapshot().indexOf(accountName) >= 0;
     }
 
     /**
@@ -53,17 +271,7 @@ public class Settings {
      * @param enabled     Whether to watch this account or not.
      */
     public void setEnabled(String accountName, boolean enabled) {
-        Set<String> accounts = new HashSet<String>(mPreferences.getStringSet(KEY_ACCOUNTS, new HashSet<String>()));
-
-        if (enabled) {
-            accounts.add(accountName);
-        } else {
-            accounts.remove(accountName);
-        }
-
-        mPreferences.edit()
-                .putStringSet(KEY_ACCOUNTS, accounts)
-                .apply();
+        edit().setEnabled(accountName, enabled).apply();
     }
 
     /**
@@ -88,9 +296,7 @@ public class Settings {
      * @param color       The color to use.
      */
     public void setAccountColor(String accountName, int color) {
-        mPreferences.edit()
-                .putInt(KEY_ACCOUNT_COLOR + ":" + accountName, color)
-                .apply();
+        edit().setAccountColor(accountName, color).apply();
     }
 
     /**
@@ -111,9 +317,7 @@ public class Settings {
      * @param canonical   The canonical label name.
      */
     public void setAccountLabel(String accountName, String canonical) {
-        mPreferences.edit()
-                .putString(KEY_ACCOUNT_LABEL + ":" + accountName, canonical)
-                .apply();
+        edit().setAccountLabel(accountName, canonical).apply();
     }
 
     /**
@@ -133,8 +337,231 @@ public class Settings {
      * @param alias       Account alias
      */
     public void setAccountAlias(String accountName, String alias) {
-        mPreferences.edit()
-                .putString(KEY_ACCOUNT_ALIAS + ":" + accountName, alias)
-                .apply();
+        edit().setAccountAlias(accountName, alias).apply();
+    }
+
+    /**
+     * Starts a batch of changes, which are written together (and reported to listeners together)
+     * when the batch is applied.
+     *
+     * @return A new batch
+     */
+    public Batch edit() {
+        return new Batch();
+    }
+
+    /**
+     * Registers a listener to be told about changes to the settings.
+     *
+     * @param listener Listener to register
+     */
+    public void registerListener(ChangeListener listener) {
+        mPreferences.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Unregisters a previously registered listener.
+     *
+     * @param listener Listener to unregister
+     */
+    public void unregisterListener(ChangeListener listener) {
+        mPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * A set of per-account changes that are written in a single commit.
+     */
+    public class Batch {
+        private final SharedPreferences.Editor mEditor = mPreferences.edit();
+        private Set<String> mAccounts;
+
+        private Batch() {
+        }
+
+        /**
+         * @see Settings#setEnabled(String, boolean)
+         */
+        public Batch setEnabled(String accountName, boolean enabled) {
+            if (mAccounts == null) {
+                mAccounts = new HashSet<String>(mPreferences.getStringSet(KEY_ACCOUNTS, new HashSet<String>()));
+            }
+            if (enabled) {
+                mAccounts.add(accountName);
+            } else {
+                mAccounts.remove(accountName);
+            }
+            return this;
+        }
+
+        /**
+         * @see Settings#setAccountColor(String, int)
+         */
+        public Batch setAccountColor(String accountName, int color) {
+            mEditor.putInt(KEY_ACCOUNT_COLOR + ":" + accountName, color);
+            return this;
+        }
+
+        /**
+         * @see Settings#setAccountLabel(String, String)
+         */
+        public Batch setAccountLabel(String accountName, String canonical) {
+            mEditor.putString(KEY_ACCOUNT_LABEL + ":" + accountName, canonical);
+            return this;
+        }
+
+        /**
+         * @see Settings#setAccountAlias(String, String)
+         */
+        public Batch setAccountAlias(String accountName, String alias) {
+            mEditor.putString(KEY_ACCOUNT_ALIAS + ":" + accountName, alias);
+            return this;
+        }
+
+        /**
+         * Writes all changes in the batch.
+         */
+        public void apply() {
+            if (mAccounts != null) {
+                mEditor.putStringSet(KEY_ACCOUNTS, mAccounts);
+            }
+            mEditor.apply();
+        }
+    }
+
+    /**
+     * Listens for changes to the settings. Keys changed together, such as those written by a
+     * single {@link Batch}, are reported in one call on the main thread.
+     */
+    public static abstract class ChangeListener implements SharedPreferences.OnSharedPreferenceChangeListener {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private Set<String> mKeys;
+
+        private final Runnable mDispatcher = new Runnable() {
+            @Override
+            public void run() {
+                final Set<String> keys;
+                synchronized (ChangeListener.this) {
+                    keys = mKeys;
+                    mKeys = null;
+                }
+                onSettingsChanged(keys);
+            }
+        };
+
+        @Override
+        public final void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            // Preferences report every key of a commit before the main looper moves on, so
+            // collecting keys until the posted dispatch runs groups them by commit.
+            synchronized (this) {
+                if (mKeys == null) {
+                    mKeys = new HashSet<String>();
+                    mHandler.post(mDispatcher);
+                }
+                mKeys.add(key);
+            }
+        }
+
+        /**
+         * Called when settings have changed.
+         *
+         * @param keys Keys of the preferences that changed
+         */
+        public abstract void onSettingsChanged(Set<String> keys);
+    }
+
+    /**
+     * Immutable copy of the settings needed to show the notification, held in flat arrays
+     * indexed by account so that they can be read without any preference lookups.
+     */
+    public static final class Snapshot {
+        private final String[] mAccountNames;
+        private final String[] mAliases;
+        private final String[] mLabels;
+        private final int[] mColors;
+        private final boolean mNotificationEnabled;
+        private final NotificationIconFactory.Style mStyle;
+        private final boolean mGlyphAtlasEnabled;
+
+        private Snapshot(Settings settings) {
+            final int defaultColor = settings.mResources.getColor(R.color.primary);
+            final String[] accountNames = settings.getAccountNames();
+            Arrays.sort(accountNames);
+
+            mAccountNames = accountNames;
+            mAliases = new String[accountNames.length];
+            mLabels = new String[accountNames.length];
+            mColors = new int[accountNames.length];
+            for (int i = 0; i < accountNames.length; i++) {
+                final String accountName = accountNames[i];
+                mAliases[i] = settings.getAccountAlias(accountName);
+                mLabels[i] = settings.getAccountLabel(accountName,
+                        GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_ALL_MAIL);
+                mColors[i] = settings.getAccountColor(accountName, defaultColor);
+            }
+            mNotificationEnabled = settings.isNotificationEnabled();
+            mStyle = settings.getNotificationStyle();
+            mGlyphAtlasEnabled = settings.isGlyphAtlasEnabled();
+        }
+
+        /**
+         * @return Number of enabled accounts.
+         */
+        public int getAccountCount() {
+            return mAccountNames.length;
+        }
+
+        /**
+         * @param accountName The account name, e.g. example@gmail.com
+         * @return Index of the account, or -1 if it isn't enabled.
+         */
+        public int indexOf(String accountName) {
+            for (int i = 0; i < mAccountNames.length; i++) {
+                if (mAccountNames[i].equals(accountName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public String getAccountName(int index) {
+            return mAccountNames[index];
+        }
+
+        public String getAlias(int index) {
+            return mAliases[index];
+        }
+
+        public String getLabel(int index) {
+            return mLabels[index];
+        }
+
+        public int getColor(int index) {
+            return mColors[index];
+        }
+
+        public boolean isNotificationEnabled() {
+            return mNotificationEnabled;
+        }
+
+        public NotificationIconFactory.Style getStyle() {
+            return mStyle;
+        }
+
+        public boolean isGlyphAtlasEnabled() {
+            return mGlyphAtlasEnabled;
+        }
+
+        /**
+         * @return Approximate number of bytes held by the snapshot.
+         */
+        long getByteCount() {
+            // The snapshot itself and its four arrays, plus the strings they hold
+            long bytes = 96 + 4 * mColors.length + 3 * 4 * mAccountNames.length;
+            for (int i = 0; i < mAccountNames.length; i++) {
+                bytes += CacheRegistry.sizeOf(mAccountNames[i]) + CacheRegistry.sizeOf(mAliases[i])
+                        + CacheRegistry.sizeOf(mLabels[i]);
+            }
+            return bytes;
+        }
     }
 }
@@ -7,6 +7,7 @@ import android.accounts.AccountManagerFuture;
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.ActionBar;
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.app.Notification;
@@ -22,6 +23,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
@@ -38,15 +40,18 @@ import android.webkit.WebView;
 
 import com.google.android.gm.contentprovider.GmailContract;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
 import uk.co.johnsto.mailcircle.widgets.ColorListPreference;
 
 
-public class SettingsActivity extends PreferenceActivity implements Consts, SharedPreferences.OnSharedPreferenceChangeListener {
-    public static final String ACTION_PREFERENCE_CHANGED = "uk.co.johnsto.mailcircle.PREFERENCE_CHANGED";
+public class SettingsActivity extends PreferenceActivity implements Consts {
 
     private static boolean isXLargeTablet(Context context) {
         return (context.getResources().getConfiguration().screenLayout
@@ -87,10 +92,12 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
 
     @Override
     protected void onStop() {
-        // Update notification immediately with new settings
-        final Intent serviceIntent = new Intent(this, NotificationService.class);
-        serviceIntent.setAction(NotificationService.ACTION_INIT);
-        startService(serviceIntent);
+        // Make sure the service is running; once it is, it picks up setting changes by itself
+        if (!NotificationService.isRunning()) {
+            final Intent serviceIntent = new Intent(this, NotificationService.class);
+            serviceIntent.setAction(NotificationService.ACTION_INIT);
+            startService(serviceIntent);
+        }
         super.onStop();
     }
 
@@ -119,34 +126,6 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
         }
     }
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(this);
-    }
-
-    @Override
-    protected void onPause() {
-        super.onPause();
-        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
-    }
-
-    @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        // Send a pref change broadcast each time a value changes so other components can respond
-        final Intent i = new Intent(ACTION_PREFERENCE_CHANGED);
-        i.putExtra("key", key);
-        Object value = sharedPreferences.getAll().get(key);
-        if (value instanceof String) {
-            i.putExtra("stringValue", value.toString());
-        } else if (value instanceof Boolean) {
-            i.putExtra("boolValue", (Boolean) value);
-        } else if (value instanceof Integer) {
-            i.putExtra("intValue", (Integer) value);
-        }
-        sendBroadcast(i);
-    }
-
     public static class SubPreferenceFragment extends PreferenceFragment {
         @Override
         public void onCreate(Bundle savedInstanceState) {
@@ -160,14 +139,22 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
 
     public static class AccountsPreferenceFragment extends SubPreferenceFragment implements LoaderManager.LoaderCallbacks<Account[]> {
         private Settings mSettings;
+        private GmailClient mClient;
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
             mSettings = new Settings(getActivity());
+            mClient = new GmailClient(getActivity().getContentResolver(), mSettings.getGmailAuthority());
             addPreferencesFromResource(R.xml.pref_accounts);
         }
 
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            mClient.release();
+        }
+
         @Override
         public void onActivityCreated(Bundle savedInstanceState) {
             super.onActivityCreated(savedInstanceState);
@@ -245,7 +232,7 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
 
             // Add "Label..."
             final ListPreference prefLabel = makeLabelPref(context, accountName);
-            prefLabel.setKey(accountName + "_label");
+            prefLabel.setKey(Settings.KEY_ACCOUNT_LABEL + ":" + accountName);
             String label = mSettings.getAccountLabel(accountName, GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_ALL_MAIL);
             prefLabel.setValue(label);
             prefLabel.setSummary(getLabelName(context, accountName, label));
@@ -291,10 +278,13 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
             ArrayList<CharSequence> values = new ArrayList<CharSequence>();
 
             // Query labels
-            Cursor cursor = context.getContentResolver().query(
-                    GmailContract.Labels.getLabelsUri(accountName),
-                    LabelQuery.PROJECTION, null, null, null
+            Cursor cursor = mClient.query(
+                    mClient.getLabelsUri(accountName),
+                    LabelQuery.PROJECTION, null, null, null, null
             );
+            if (cursor == null) {
+                return prefLabel;
+            }
             while (cursor.moveToNext()) {
                 String name = cursor.getString(LabelQuery.NAME);
                 String canonical = cursor.getString(LabelQuery.CANONICAL_NAME);
@@ -319,10 +309,13 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
          */
         private String getLabelName(Context context, String accountName, String label) {
             // FIXME: change this to a WHERE query if supported.
-            Cursor cursor = context.getContentResolver().query(
-                    GmailContract.Labels.getLabelsUri(accountName),
-                    LabelQuery.PROJECTION, null, null, null
+            Cursor cursor = mClient.query(
+                    mClient.getLabelsUri(accountName),
+                    LabelQuery.PROJECTION, null, null, null, null
             );
+            if (cursor == null) {
+                return label;
+            }
             // Iterate through labels until the label is found.
             while (cursor.moveToNext()) {
                 String name = cursor.getString(LabelQuery.NAME);
@@ -398,10 +391,23 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
             addPreferencesFromResource(R.xml.pref_notification);
 
             bindPreferenceSummaryToValue(findPreference("notification_style"));
+
+            final Preference triggerMode = findPreference(Settings.KEY_TRIGGER_MODE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                bindPreferenceSummaryToValue(triggerMode);
+            } else {
+                // Content triggered jobs aren't available, so the service always stays running
+                triggerMode.setEnabled(false);
+                triggerMode.setSummary(getResources().getString(
+                        R.string.pref_summary_trigger_mode_unavailable));
+            }
         }
     }
 
     public static class DebugPreferenceFragment extends SubPreferenceFragment {
+        // Number of checks shown from the event trace
+        private static final int TRACE_LINES_SHOWN = 50;
+
         private NotificationManager mNM;
 
         @Override
@@ -446,6 +452,77 @@ public class SettingsActivity extends PreferenceActivity implements Consts, Shar
                     return true;
                 }
             });
+
+            findPreference("check_trace").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(final Preference preference) {
+                    final Context context = getActivity().getApplicationContext();
+
+                    // Reading and saving the trace is disk I/O, so keep it off the main thread
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            final String trace = readTrace(context);
+                            final Activity activity = getActivity();
+                            if (activity == null) {
+                                return;
+                            }
+                            activity.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (!isAdded()) {
+                                        return;
+                                    }
+                                    // Only show the most recent checks
+                                    int start = trace.length();
+                                    for (int lines = 0; lines <= TRACE_LINES_SHOWN && start > 0; lines++) {
+                                        start = trace.lastIndexOf('\n', start - 1);
+                                    }
+                                    new AlertDialog.Builder(getActivity())
+                                            .setTitle(preference.getTitle())
+                                            .setMessage(trace.substring(start + 1))
+                                            .setPositiveButton(android.R.string.ok, null)
+                                            .show();
+                                }
+                            });
+                        }
+                    }, "MailCircleTrace").start();
+                    return true;
+                }
+            });
+        }
+
+        /**
+         * Decodes the event trace, and saves the whole of it to check_trace.txt where it can be
+         * pulled off the device.
+         *
+         * @param context Context of the app
+         * @return The decoded trace, or an error message if it couldn't be read
+         */
+        private static String readTrace(Context context) {
+            String trace;
+            try {
+                trace = EventTrace.decode(EventTrace.read(
+                        new File(context.getFilesDir(), NotificationService.TRACE_FILE)));
+            } catch (IOException ex) {
+                trace = "Couldn't read trace: " + ex.getMessage();
+            }
+
+            final File dir = context.getExternalFilesDir(null);
+            if (dir != null) {
+                try {
+                    final Writer out = new OutputStreamWriter(
+                            new FileOutputStream(new File(dir, "check_trace.txt")), "UTF-8");
+                    try {
+                        out.write(trace);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ex) {
+                    Log.w(TAG, "Couldn't save event trace", ex);
+                }
+            }
+            return trace;
         }
 
         @Override
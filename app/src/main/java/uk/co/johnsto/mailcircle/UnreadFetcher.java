@@ -0,0 +1,227 @@
+package uk.co.johnsto.mailcircle;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the unread counts of several accounts in parallel, giving up on any account that
+ * hasn't answered by the deadline.
+ * <p/>
+ * Each query is given a {@link CancellationSignal} that's cancelled if the query takes longer
+ * than the per-query timeout, or if it's still running when the overall deadline passes.
+ * <p/>
+ * Queries run on a fixed set of threads, each reusing its signal until it's cancelled, and
+ * timeouts are enforced by the thread waiting in {@link #fetch}, so fetching allocates nothing
+ * beyond what the queries themselves do.
+ */
+public class UnreadFetcher implements Consts {
+    /**
+     * Result for an account that missed the deadline (or whose query failed).
+     */
+    public static final int MISSED = -1;
+
+    private final Thread[] mThreads;
+    private final Slot[] mSlots;
+    private final long mTimeoutNanos;
+    private final long mDeadlineNanos;
+
+    // State of the running fetch, guarded by mSlots. Each fetch has its own generation, so a
+    // query that answers after its fetch has given up can't write into the next one's results.
+    private List<String> mAccountNames;
+    private Query mQuery;
+    private int[] mResults;
+    private int mCount;
+    private int mNext;
+    private int mRemaining;
+    private int mGeneration;
+    private boolean mShutdown;
+
+    /**
+     * Creates a new fetcher.
+     *
+     * @param parallelism Maximum number of accounts to query at once
+     * @param timeout     Time (ms) allowed for each query
+     * @param deadline    Time (ms) allowed for all accounts to be queried
+     */
+    public UnreadFetcher(int parallelism, long timeout, long deadline) {
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        mDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadline);
+        mThreads = new Thread[Math.max(1, parallelism)];
+        mSlots = new Slot[mThreads.length];
+        for (int i = 0; i < mThreads.length; i++) {
+            final Slot slot = new Slot();
+            mSlots[i] = slot;
+            mThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        runQueries(slot);
+                    } catch (InterruptedException ex) {
+                        // Shut down
+                    }
+                }
+            }, "MailCircleQuery-" + (i + 1));
+            mThreads[i].start();
+        }
+    }
+
+    /**
+     * Queries the given accounts, blocking until all have answered or the deadline has passed.
+     * Only one fetch may run at a time.
+     *
+     * @param accountNames Accounts to query
+     * @param query        Query to run for each account
+     * @param results      Receives the unread count of each account, in the same order, or
+     *                     {@link #MISSED}; must hold at least as many entries as there are accounts
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void fetch(List<String> accountNames, Query query, int[] results)
+            throws InterruptedException {
+        final int count = accountNames.size();
+        synchronized (mSlots) {
+            Arrays.fill(results, 0, count, MISSED);
+            mAccountNames = accountNames;
+            mQuery = query;
+            mResults = results;
+            mCount = count;
+            mNext = 0;
+            mRemaining = count;
+            mSlots.notifyAll();
+
+            final long deadline = System.nanoTime() + mDeadlineNanos;
+            try {
+                while (mRemaining > 0) {
+                    final long now = System.nanoTime();
+                    if (now >= deadline) {
+                        break;
+                    }
+                    // Cancel queries that have run out of time, and wake up when the next will
+                    long wake = deadline;
+                    for (Slot slot : mSlots) {
+                        if (slot.index >= 0) {
+                            final long expiry = slot.started + mTimeoutNanos;
+                            if (expiry <= now) {
+                                slot.signal.cancel();
+                            } else if (expiry < wake) {
+                                wake = expiry;
+                            }
+                        }
+                    }
+                    mSlots.wait(TimeUnit.NANOSECONDS.toMillis(wake - now) + 1);
+                }
+            } finally {
+                // Leave unclaimed accounts as missed, and stop queries that are still running
+                for (Slot slot : mSlots) {
+                    if (slot.index >= 0) {
+                        slot.signal.cancel();
+                    }
+                }
+                mNext = mCount;
+                mAccountNames = null;
+                mQuery = null;
+                mResults = null;
+                mGeneration++;
+            }
+        }
+    }
+
+    /**
+     * Runs queries on one of the fetcher's threads until it's shut down.
+     *
+     * @param slot The thread's slot
+     * @throws InterruptedException when the fetcher is shut down
+     */
+    private void runQueries(Slot slot) throws InterruptedException {
+        while (true) {
+            final int index;
+            final int generation;
+            final String accountName;
+            final Query query;
+            final CancellationSignal signal;
+            synchronized (mSlots) {
+                while (!mShutdown && mNext >= mCount) {
+                    mSlots.wait();
+                }
+                if (mShutdown) {
+                    return;
+                }
+                index = mNext++;
+                generation = mGeneration;
+                accountName = mAccountNames.get(index);
+                query = mQuery;
+                if (slot.signal.isCanceled()) {
+                    // A cancelled signal can't be reset
+                    slot.signal = new CancellationSignal();
+                }
+                signal = slot.signal;
+                slot.index = index;
+                slot.started = System.nanoTime();
+                // Let the fetch know when this query times out
+                mSlots.notifyAll();
+            }
+
+            int result;
+            try {
+                result = query.getUnreadCount(accountName, signal);
+            } catch (OperationCanceledException ex) {
+                Log.w(TAG, "Unread count query for " + accountName + " timed out");
+                result = MISSED;
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Couldn't get unread count for " + accountName, ex);
+                result = MISSED;
+            }
+
+            synchronized (mSlots) {
+                slot.index = -1;
+                if (generation == mGeneration) {
+                    mResults[index] = result;
+                    if (--mRemaining == 0) {
+                        mSlots.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads. The fetcher can't be used afterwards.
+     */
+    public void shutdown() {
+        synchronized (mSlots) {
+            mShutdown = true;
+            mSlots.notifyAll();
+        }
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Query state of one of the fetcher's threads, guarded by the fetcher's lock.
+     */
+    private static class Slot {
+        CancellationSignal signal = new CancellationSignal();
+        int index = -1; // account being queried, or -1 if idle
+        long started; // System.nanoTime() when the query started
+    }
+
+    /**
+     * Unread count query for a single account.
+     */
+    public interface Query {
+        /**
+         * @param accountName The account name, e.g. example@gmail.com
+         * @param signal      Signal cancelled when the query should be abandoned
+         * @return Number of unread emails
+         * @throws OperationCanceledException if the signal was cancelled
+         */
+        int getUnreadCount(String accountName, CancellationSignal signal);
+    }
+}
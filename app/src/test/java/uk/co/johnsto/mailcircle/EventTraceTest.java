@@ -0,0 +1,156 @@
+package uk.co.johnsto.mailcircle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventTraceTest {
+    private static final int CAPACITY = 4;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 24 + 4 * PipelineMetrics.Stage.values().length;
+
+    private static final Pattern SEQUENCE = Pattern.compile(" #(\\d+) ");
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("trace", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void newTraceIsEmpty() throws IOException {
+        EventTrace.open(mFile, CAPACITY);
+
+        assertEquals(HEADER_SIZE + CAPACITY * RECORD_SIZE, mFile.length());
+        assertEquals("", EventTrace.decode(EventTrace.read(mFile)));
+    }
+
+    @Test
+    public void decodesRecordsOldestFirst() throws IOException {
+        final EventTrace trace = EventTrace.open(mFile, CAPACITY);
+        append(trace, 3);
+
+        assertEquals(sequences(1, 2, 3), decodeSequences());
+    }
+
+    @Test
+    public void wrapsOncePastCapacity() throws IOException {
+        final EventTrace trace = EventTrace.open(mFile, CAPACITY);
+        append(trace, CAPACITY + 2);
+
+        assertEquals(sequences(3, 4, 5, 6), decodeSequences());
+    }
+
+    @Test
+    public void decodesFieldsOfARecord() throws IOException {
+        final EventTrace trace = EventTrace.open(mFile, CAPACITY);
+        final int[] stageMicros = new int[PipelineMetrics.Stage.values().length];
+        stageMicros[0] = 1234;
+        trace.append(1 << PipelineMetrics.Source.values()[0].ordinal(), stageMicros, 42, true);
+
+        final String line = EventTrace.decode(EventTrace.read(mFile));
+        assertTrue(line, line.contains(" triggers="
+                + PipelineMetrics.Source.values()[0].name().toLowerCase(Locale.US) + " "));
+        assertTrue(line, line.contains(" total=42 posted "));
+        assertTrue(line, line.contains("=1234us"));
+    }
+
+    @Test
+    public void skipsUnwrittenRecord() throws IOException {
+        final EventTrace trace = EventTrace.open(mFile, CAPACITY);
+        append(trace, 3);
+
+        // A record whose sequence is still 0 was being written when the process died
+        final byte[] data = EventTrace.read(mFile);
+        ByteBuffer.wrap(data).putLong(HEADER_SIZE + RECORD_SIZE, 0);
+
+        assertEquals(sequences(1, 3), sequences(EventTrace.decode(data)));
+    }
+
+    @Test
+    public void reopenKeepsRecords() throws IOException {
+        append(EventTrace.open(mFile, CAPACITY), 2);
+        append(EventTrace.open(mFile, CAPACITY), 1);
+
+        assertEquals(sequences(1, 2, 3), decodeSequences());
+    }
+
+    @Test
+    public void resetsTraceOfAnotherCapacity() throws IOException {
+        append(EventTrace.open(mFile, CAPACITY), 2);
+        append(EventTrace.open(mFile, CAPACITY * 2), 1);
+
+        assertEquals(sequences(1), decodeSequences());
+    }
+
+    @Test
+    public void resetsFileWithForeignHeader() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + CAPACITY * RECORD_SIZE);
+            raf.writeInt(0xcafebabe);
+            raf.seek(HEADER_SIZE);
+            raf.writeLong(7);
+        } finally {
+            raf.close();
+        }
+
+        append(EventTrace.open(mFile, CAPACITY), 1);
+
+        assertEquals(sequences(1), decodeSequences());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignData() throws IOException {
+        EventTrace.decode(new byte[HEADER_SIZE]);
+    }
+
+    private static void append(EventTrace trace, int count) {
+        final int[] stageMicros = new int[PipelineMetrics.Stage.values().length];
+        for (int i = 0; i < count; i++) {
+            trace.append(0, stageMicros, i, false);
+        }
+    }
+
+    private List<Long> decodeSequences() throws IOException {
+        return sequences(EventTrace.decode(EventTrace.read(mFile)));
+    }
+
+    private static List<Long> sequences(String text) {
+        final List<Long> sequences = new ArrayList<Long>();
+        for (String line : text.split("\n")) {
+            final Matcher matcher = SEQUENCE.matcher(line);
+            if (matcher.find()) {
+                sequences.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+        return sequences;
+    }
+
+    private static List<Long> sequences(long... values) {
+        final List<Long> sequences = new ArrayList<Long>();
+        for (long value : values) {
+            sequences.add(value);
+        }
+        return sequences;
+    }
+}
@@ -0,0 +1,99 @@
+package uk.co.johnsto.mailcircle;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that rebuilding icons of a shape the factory has already seen doesn't allocate.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, shadows = QuietCanvas.class)
+public class NotificationIconFactoryTest {
+    private static final int SIZE = 128;
+    private static final int BUILDS = 10000;
+
+    // A miss stores a new entry in the cache's map, but never a new bitmap or key
+    private static final int MISS_BYTES = 256;
+
+    private NotificationIconFactory.Cache mCache;
+    private NotificationIconFactory mFactory;
+
+    @Before
+    public void setUp() {
+        final int iconBytes = 4 * SIZE * SIZE;
+        mCache = new NotificationIconFactory.Cache(
+                NotificationService.ICON_CACHE_SIZE * iconBytes,
+                NotificationService.ICON_BASE_CACHE_SIZE * iconBytes,
+                NotificationService.ICON_POOL_SIZE);
+        mFactory = new NotificationIconFactory(RuntimeEnvironment.application.getResources(),
+                SIZE, SIZE, mCache);
+    }
+
+    @Test
+    public void cacheHitDoesNotAllocate() {
+        final Bitmap icon = build(1234);
+
+        final long start = allocatedBytes();
+        for (int i = 0; i < BUILDS; i++) {
+            assertSame(icon, build(1234));
+        }
+        final long bytes = allocatedBytes() - start;
+
+        assertTrue(bytes + " bytes allocated by " + BUILDS + " cache hits", bytes < BUILDS);
+    }
+
+    @Test
+    public void cacheMissReusesPooledBitmap() {
+        // Cycle through more numbers than the cache holds, so every build is a miss, until the
+        // pool has filled up with evicted bitmaps
+        final int numbers = 2 * NotificationService.ICON_CACHE_SIZE;
+        final Set<Bitmap> seen = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+        for (int i = 0; i < 2 * numbers; i++) {
+            seen.add(build(i % numbers));
+        }
+        final int misses = mCache.getMissCount();
+
+        final long start = allocatedBytes();
+        for (int i = 0; i < BUILDS; i++) {
+            final Bitmap icon = build(i % numbers);
+            if (!seen.contains(icon)) {
+                throw new AssertionError("Miss " + i + " allocated a new bitmap");
+            }
+        }
+        final long bytes = allocatedBytes() - start;
+
+        assertEquals(BUILDS, mCache.getMissCount() - misses);
+        assertTrue(bytes + " bytes allocated by " + BUILDS + " cache misses",
+                bytes < (long) BUILDS * MISS_BYTES);
+    }
+
+    private Bitmap build(int number) {
+        return mFactory.reset()
+                .setStyle(NotificationIconFactory.Style.PIE)
+                .setColor(0xfff44336)
+                .addSlice(3, 0xfff44336)
+                .addSlice(1, 0xff2196f3)
+                .setNumber(number)
+                .build();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,222 @@
+package uk.co.johnsto.mailcircle;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ServiceController;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that checks which find nothing changed don't allocate, and that checks which find a
+ * changed count allocate little more than the notification they post, so that bursts of mail
+ * events don't churn the garbage collector.
+ * <p/>
+ * Only the thread running the check is measured. Queries run on the fetcher's threads, where
+ * the provider's cursors are allocated whatever the service does.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, shadows = QuietCanvas.class)
+public class NotificationServiceAllocationTest {
+    private static final String AUTHORITY = "uk.co.johnsto.mailcircle.test";
+    private static final String[] ACCOUNTS = {"a@example.com", "b@example.com", "c@example.com"};
+    private static final int CHECKS = 10000;
+    private static final int FETCH_CHECKS = 1000;
+    private static final int REFERENCE_ID = 1000;
+
+    // What a changed check may allocate besides building and posting the notification: the new
+    // state itself, and the content text handed to the builder. State isn't stored while
+    // settings are overridden.
+    private static final int STATE_BYTES = 1024;
+
+    private ServiceController<NotificationService> mController;
+    private NotificationService mService;
+
+    @Before
+    public void setUp() {
+        Settings.setOverrides(AUTHORITY, ACCOUNTS);
+        LabelsProvider.sExtra = 0;
+
+        final ProviderInfo info = new ProviderInfo();
+        info.authority = AUTHORITY;
+        Robolectric.buildContentProvider(LabelsProvider.class).create(info);
+
+        mController = Robolectric.buildService(NotificationService.class).create();
+        mService = mController.get();
+    }
+
+    @After
+    public void tearDown() {
+        mController.destroy();
+        Settings.setOverrides(null, null);
+    }
+
+    @Test
+    public void unchangedCheckDoesNotAllocate() {
+        // First check queries every account and posts the notification; the next one has
+        // nothing to fetch and finds it already on display
+        mService.check(null);
+        mService.check(Collections.<String>emptySet());
+        assertEquals(1, mService.getPostCount());
+
+        final Set<String> unchanged = Collections.emptySet();
+        final long start = allocatedBytes();
+        for (int i = 0; i < CHECKS; i++) {
+            mService.check(unchanged);
+        }
+        final long bytes = allocatedBytes() - start;
+
+        assertEquals(1, mService.getPostCount());
+        assertEquals(CHECKS + 1, mService.getSkipCount());
+        // Allow for the odd allocation by the runtime, but not one per check
+        assertTrue(bytes + " bytes allocated by " + CHECKS + " checks", bytes < CHECKS);
+    }
+
+    @Test
+    public void unchangedAccountCheckDoesNotAllocate() {
+        // An observer reports a change to an account whose count is the same
+        final Set<String> changed = Collections.singleton(ACCOUNTS[0]);
+        mService.check(null);
+        mService.check(changed);
+        assertEquals(1, mService.getPostCount());
+
+        final int queries = LabelsProvider.sQueries.get();
+        final long start = allocatedBytes();
+        for (int i = 0; i < FETCH_CHECKS; i++) {
+            mService.check(changed);
+        }
+        final long bytes = allocatedBytes() - start;
+
+        assertTrue("Checks didn't query", LabelsProvider.sQueries.get() - queries >= FETCH_CHECKS);
+        assertEquals(1, mService.getPostCount());
+        assertTrue(bytes + " bytes allocated by " + FETCH_CHECKS + " checks",
+                bytes < FETCH_CHECKS);
+    }
+
+    @Test
+    public void changedAccountCheckOnlyAllocatesItsPost() {
+        // An account's count goes up and down, e.g. as mail arrives and is read, so both icons
+        // end up in the cache
+        final Set<String> changed = Collections.singleton(ACCOUNTS[0]);
+        mService.check(null);
+        for (int i = 0; i < 4; i++) {
+            LabelsProvider.sExtra = i % 2;
+            mService.check(changed);
+        }
+
+        final int posts = mService.getPostCount();
+        final long start = allocatedBytes();
+        for (int i = 0; i < FETCH_CHECKS; i++) {
+            LabelsProvider.sExtra = i % 2;
+            mService.check(changed);
+        }
+        final long bytes = allocatedBytes() - start;
+        assertEquals(posts + FETCH_CHECKS, mService.getPostCount());
+
+        // Building and posting an equivalent notification directly
+        final NotificationManager nm =
+                (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
+        final Bitmap icon = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        final long referenceStart = allocatedBytes();
+        for (int i = 0; i < FETCH_CHECKS; i++) {
+            nm.notify(REFERENCE_ID, new Notification.Builder(mService)
+                    .setNumber(i)
+                    .setSmallIcon(R.drawable.ic_notif_mail, i)
+                    .setLargeIcon(icon)
+                    .setColor(0xfff44336)
+                    .setContentIntent(null)
+                    .setContentTitle("Title")
+                    .setContentText("Text")
+                    .build());
+        }
+        final long reference = allocatedBytes() - referenceStart;
+
+        assertTrue(bytes + " bytes allocated by " + FETCH_CHECKS + " checks, against "
+                        + reference + " bytes to post as many notifications",
+                bytes < reference + (long) FETCH_CHECKS * STATE_BYTES);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Serves an All Mail label with unread mail for any account, on both the labels and the
+     * label URIs.
+     */
+    public static class LabelsProvider extends ContentProvider {
+        // Added to the first account's unread count, and number of queries answered
+        static volatile int sExtra;
+        static final AtomicInteger sQueries = new AtomicInteger();
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+            sQueries.incrementAndGet();
+            final String accountName = uri.getPathSegments().get(0);
+            final Object[] row = new Object[projection.length];
+            for (int c = 0; c < projection.length; c++) {
+                if (GmailContract.Labels.CANONICAL_NAME.equals(projection[c])) {
+                    row[c] = GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_ALL_MAIL;
+                } else if (GmailContract.Labels.URI.equals(projection[c])) {
+                    row[c] = "content://" + AUTHORITY + "/" + accountName + "/label/all";
+                } else if (GmailContract.Labels.NUM_UNREAD_CONVERSATIONS.equals(projection[c])) {
+                    row[c] = accountName.length()
+                            + (accountName.equals(ACCOUNTS[0]) ? sExtra : 0);
+                }
+            }
+            final MatrixCursor cursor = new MatrixCursor(projection, 1);
+            cursor.addRow(row);
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return GmailContract.Labels.CONTENT_TYPE;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}